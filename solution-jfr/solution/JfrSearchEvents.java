@@ -0,0 +1,155 @@
+package solution;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder versions of the SearchEvents. Kept out of solution-src so the planner builds
+ * and runs on JDKs without jdk.jfr; SearchEvents loads this class only when jdk.jfr is there.
+ */
+public class JfrSearchEvents implements SearchEvents.Factory {
+    /**
+     * A single decision made by a planner session
+     */
+    @Name("solution.Decision")
+    @Label("Decision")
+    @Category("MCTS")
+    @Description("A decision made by the planner, from request to chosen action")
+    static class Decision extends Event {
+        @Label("Steps Done")
+        int stepsDone;
+
+        @Label("Budget (ms)")
+        int budget;
+
+        @Label("Iterations")
+        int iterations;
+
+        @Label("Live Nodes")
+        int liveNodes;
+
+        @Label("Source")
+        @Description("What chose the action: search, solver, cache or workers")
+        String source;
+    }
+
+    /**
+     * A single random playout
+     */
+    @Name("solution.Playout")
+    @Label("Playout")
+    @Category("MCTS")
+    @Description("A sampled random playout from a new leaf")
+    static class Playout extends Event {
+        @Label("Length")
+        @Description("Number of actions simulated")
+        int length;
+
+        @Label("Outcome")
+        @Description("win, loss, horizon, cached, evaluated or abandoned")
+        String outcome;
+    }
+
+    /**
+     * A phase of the search which allocates or frees a lot of memory
+     */
+    @Name("solution.SearchPhase")
+    @Label("Search Phase")
+    @Category("MCTS")
+    @Description("A phase of the search which allocates or releases many objects")
+    static class SearchPhase extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Nodes")
+        @Description("Number of tree nodes or states involved")
+        int nodes;
+    }
+
+    /**
+     * Decision event which is recorded
+     */
+    private static class RecordedDecision extends SearchEvents.DecisionEvent {
+        /**
+         * The flight recorder event
+         */
+        private final Decision event = new Decision();
+
+        @Override
+        void begin() {
+            event.begin();
+        }
+
+        @Override
+        void commit() {
+            event.stepsDone = stepsDone;
+            event.budget = budget;
+            event.iterations = iterations;
+            event.liveNodes = liveNodes;
+            event.source = source;
+            event.commit();
+        }
+    }
+
+    /**
+     * Playout event which is recorded
+     */
+    private static class RecordedPlayout extends SearchEvents.PlayoutEvent {
+        /**
+         * The flight recorder event
+         */
+        private final Playout event = new Playout();
+
+        @Override
+        void begin() {
+            event.begin();
+        }
+
+        @Override
+        void commit() {
+            event.length = length;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    /**
+     * Search phase event which is recorded
+     */
+    private static class RecordedSearchPhase extends SearchEvents.SearchPhaseEvent {
+        /**
+         * The flight recorder event
+         */
+        private final SearchPhase event = new SearchPhase();
+
+        @Override
+        void begin() {
+            event.begin();
+        }
+
+        @Override
+        void commit() {
+            event.phase = phase;
+            event.nodes = nodes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public SearchEvents.DecisionEvent decision() {
+        return new RecordedDecision();
+    }
+
+    @Override
+    public SearchEvents.PlayoutEvent playout() {
+        return new RecordedPlayout();
+    }
+
+    @Override
+    public SearchEvents.SearchPhaseEvent searchPhase() {
+        return new RecordedSearchPhase();
+    }
+}
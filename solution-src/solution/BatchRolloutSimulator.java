@@ -0,0 +1,443 @@
+package solution;
+
+import problem.Action;
+import problem.ActionType;
+import problem.ProblemSpec;
+import problem.Tire;
+import problem.TirePressure;
+import simulator.State;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Runs a batch of rollouts in lockstep, with the rollout states held in parallel primitive
+ * arrays. Each rollout keeps its current car, driver, tires and pressure and repeatedly performs
+ * CONTINUE_MOVING, filling the tank whenever there isn't enough fuel to move. The move
+ * distributions and fuel usage of every configuration are compiled into flat tables up front,
+ * so a batch step is a tight loop over the arrays the JIT can optimize.
+ *
+ * Used as a leaf evaluator, it returns the mean reward of the batch. The rollout arrays are reused
+ * between batches, so concurrent evaluations are run one at a time.
+ *
+ * As a StepSimulator it performs single CONTINUE_MOVING actions in the first rollout, so the move
+ * tables can be checked by SimulatorFidelityTester. This shares the rollout arrays with the
+ * evaluator, so an instance must not be used as both at once.
+ */
+public class BatchRolloutSimulator implements LeafEvaluator, StepSimulator {
+    /**
+     * Default number of rollouts in a batch
+     */
+    static final int DEFAULT_BATCH_SIZE = 256;
+
+    /**
+     * Fuel added per time step when refueling
+     */
+    private static final int FUEL_PER_STEP = 10;
+
+    /**
+     * Tire pressures, in the order used for the pressure index
+     */
+    private static final List<TirePressure> TIRE_PRESSURES = Arrays.asList(
+            TirePressure.FIFTY_PERCENT,
+            TirePressure.SEVENTY_FIVE_PERCENT,
+            TirePressure.ONE_HUNDRED_PERCENT
+    );
+
+    /**
+     * The problem specification
+     */
+    private ProblemSpec problemSpec;
+
+    /**
+     * The reward shape of the search
+     */
+    private SearchConstants constants;
+
+    /**
+     * Number of rollouts in a batch
+     */
+    private int batchSize;
+
+    /**
+     * Terrain index of each cell
+     */
+    private int[] cellTerrain;
+
+    /**
+     * Cumulative move distribution of each (terrain, car, driver, tire, pressure), flattened
+     */
+    private double[] moveCdf;
+
+    /**
+     * Fuel used by a move for each (terrain, car, pressure), flattened
+     */
+    private int[] fuelUsage;
+
+    /**
+     * Change in position for each move index. 0 for slip and breakdown.
+     */
+    private int[] movePos;
+
+    /**
+     * Steps used by each move index
+     */
+    private int[] moveSteps;
+
+    /**
+     * Whether moving consumes fuel on this level
+     */
+    private int consumesFuel;
+
+    /**
+     * Rollout positions
+     */
+    private int[] pos;
+
+    /**
+     * Rollout fuel levels
+     */
+    private int[] fuel;
+
+    /**
+     * Rollout car indices
+     */
+    private int[] car;
+
+    /**
+     * Rollout driver indices
+     */
+    private int[] driver;
+
+    /**
+     * Rollout tire indices
+     */
+    private int[] tire;
+
+    /**
+     * Rollout tire pressure indices
+     */
+    private int[] pressure;
+
+    /**
+     * Rollout step counts
+     */
+    private int[] steps;
+
+    /**
+     * Whether each rollout has finished
+     */
+    private boolean[] done;
+
+    /**
+     * Reward of each finished rollout
+     */
+    private double[] rewards;
+
+    /**
+     * Uniform random numbers for the current batch step
+     */
+    private double[] uniforms;
+
+    /**
+     * Random number generator for move sampling
+     */
+    private SplittableRandom random;
+
+    /**
+     * Create a batch simulator for a problem, compiling its move and fuel tables
+     *
+     * @param problemSpec the problem specification
+     * @param batchSize number of rollouts in a batch
+     * @param constants the reward shape of the search
+     */
+    public BatchRolloutSimulator(ProblemSpec problemSpec, int batchSize,
+                                 SearchConstants constants) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+
+        this.problemSpec = problemSpec;
+        this.constants = constants;
+        this.batchSize = batchSize;
+
+        compileTables();
+
+        pos = new int[batchSize];
+        fuel = new int[batchSize];
+        car = new int[batchSize];
+        driver = new int[batchSize];
+        tire = new int[batchSize];
+        pressure = new int[batchSize];
+        steps = new int[batchSize];
+        done = new boolean[batchSize];
+        rewards = new double[batchSize];
+        uniforms = new double[batchSize];
+        random = new SplittableRandom();
+    }
+
+    @Override
+    public synchronized double evaluate(State state, int steps) {
+        load(state, steps);
+        run();
+
+        double rewardSum = 0;
+
+        for (int i = 0; i < batchSize; i++) {
+            rewardSum += rewards[i];
+        }
+
+        return rewardSum / batchSize;
+    }
+
+    /**
+     * Start every rollout in the batch from the same state
+     *
+     * @param state the start state
+     * @param stepsDone the number of steps used so far
+     */
+    public void load(State state, int stepsDone) {
+        setStartState(state, stepsDone);
+
+        Arrays.fill(pos, pos[0]);
+        Arrays.fill(fuel, fuel[0]);
+        Arrays.fill(car, car[0]);
+        Arrays.fill(driver, driver[0]);
+        Arrays.fill(tire, tire[0]);
+        Arrays.fill(pressure, pressure[0]);
+        Arrays.fill(steps, stepsDone);
+        Arrays.fill(done, false);
+    }
+
+    /**
+     * Start the first rollout from a state
+     *
+     * @param startState the start state
+     * @param stepsDone the number of steps used so far
+     *
+     * @return a copy of the start state
+     */
+    @Override
+    public State setStartState(State startState, int stepsDone) {
+        pos[0] = startState.getPos();
+        fuel[0] = startState.getFuel();
+        car[0] = problemSpec.getCarIndex(startState.getCarType());
+        driver[0] = problemSpec.getDriverOrder().indexOf(startState.getDriver());
+        tire[0] = problemSpec.getTireOrder().indexOf(startState.getTireModel());
+        pressure[0] = TIRE_PRESSURES.indexOf(startState.getTirePressure());
+        steps[0] = stepsDone;
+
+        return startState.copyState();
+    }
+
+    /**
+     * Perform CONTINUE_MOVING in the first rollout, as FromStateSimulator does: without the fuel
+     * to move the car stays put for a step, otherwise a move is sampled from the tables
+     *
+     * @param action the action, which must be CONTINUE_MOVING
+     *
+     * @return FromStateSimulator.IN_PROGRESS, WIN or LOSS
+     */
+    @Override
+    public int step(Action action) {
+        if (!supports(action)) {
+            throw new IllegalArgumentException("Only CONTINUE_MOVING is simulated");
+        }
+
+        int n = problemSpec.getN();
+
+        if (steps[0] > problemSpec.getMaxT()) {
+            return FromStateSimulator.LOSS;
+        } else if (pos[0] >= n) {
+            return FromStateSimulator.WIN;
+        }
+
+        int terrain = cellTerrain[pos[0] - 1];
+        int fuelRequired = fuelUsage[(terrain * problemSpec.getCT() + car[0]) *
+                TIRE_PRESSURES.size() + pressure[0]];
+
+        if (fuelRequired > fuel[0]) {
+            steps[0]++;
+        } else {
+            move(0, terrain, fuelRequired, random.nextDouble());
+        }
+
+        return pos[0] >= n ? FromStateSimulator.WIN : FromStateSimulator.IN_PROGRESS;
+    }
+
+    @Override
+    public State getCurrentState() {
+        return new State(pos[0], false, false, problemSpec.getCarOrder().get(car[0]), fuel[0],
+                TIRE_PRESSURES.get(pressure[0]), problemSpec.getDriverOrder().get(driver[0]),
+                problemSpec.getTireOrder().get(tire[0]));
+    }
+
+    @Override
+    public int getSteps() {
+        return steps[0];
+    }
+
+    @Override
+    public boolean supports(Action action) {
+        return action.getActionType() == ActionType.MOVE;
+    }
+
+    /**
+     * Advance all the rollouts in lockstep until every one has won or lost
+     */
+    public void run() {
+        int n = problemSpec.getN();
+        int maxT = problemSpec.getMaxT();
+        int cars = problemSpec.getCT();
+        int active = batchSize;
+
+        while (active > 0) {
+            for (int i = 0; i < batchSize; i++) {
+                uniforms[i] = random.nextDouble();
+            }
+
+            active = 0;
+
+            for (int i = 0; i < batchSize; i++) {
+                if (done[i]) {
+                    continue;
+                }
+
+                if (steps[i] > maxT) {
+                    done[i] = true;
+                    rewards[i] = constants.lossReward(pos[i], n);
+                    continue;
+                }
+
+                int terrain = cellTerrain[pos[i] - 1];
+                int fuelRequired = fuelUsage[(terrain * cars + car[i]) *
+                        TIRE_PRESSURES.size() + pressure[i]];
+
+                if (fuelRequired > fuel[i]) {
+                    // Fill the tank, one step per FUEL_PER_STEP units
+                    int added = ProblemSpec.FUEL_MAX - fuel[i];
+                    steps[i] += Math.max(1, (added + FUEL_PER_STEP - 1) / FUEL_PER_STEP);
+                    fuel[i] = ProblemSpec.FUEL_MAX;
+                    active++;
+                    continue;
+                }
+
+                move(i, terrain, fuelRequired, uniforms[i]);
+
+                if (pos[i] >= n) {
+                    done[i] = true;
+                    rewards[i] = constants.winReward(steps[i], maxT);
+                } else {
+                    active++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Move a rollout which has the fuel to, sampling the move distance from the tables
+     *
+     * @param i the rollout
+     * @param terrain the terrain index of the rollout's cell
+     * @param fuelRequired the fuel the move uses
+     * @param u a uniform random number, which picks the move
+     */
+    private void move(int i, int terrain, int fuelRequired, double u) {
+        int range = ProblemSpec.CAR_MOVE_RANGE;
+        int config = ((car[i] * problemSpec.getDT() + driver[i]) * ProblemSpec.NUM_TYRE_MODELS +
+                tire[i]) * TIRE_PRESSURES.size() + pressure[i];
+        int base = (terrain * problemSpec.getCT() * problemSpec.getDT() *
+                ProblemSpec.NUM_TYRE_MODELS * TIRE_PRESSURES.size() + config) * range;
+
+        // Count the CDF entries below the sample rather than branching on each
+        int k = 0;
+
+        for (int j = 0; j < range - 1; j++) {
+            k += u > moveCdf[base + j] ? 1 : 0;
+        }
+
+        pos[i] = Math.min(problemSpec.getN(), Math.max(1, pos[i] + movePos[k]));
+        steps[i] += moveSteps[k];
+        fuel[i] -= consumesFuel * fuelRequired;
+    }
+
+    /**
+     * Get the reward of each rollout in the last batch
+     *
+     * @return the rewards, indexed by rollout
+     */
+    public double[] getRewards() {
+        return rewards;
+    }
+
+    /**
+     * Compile the terrain, move distribution and fuel usage tables
+     */
+    private void compileTables() {
+        FromStateSimulator simulator = new FromStateSimulator(problemSpec);
+        List<String> cars = problemSpec.getCarOrder();
+        List<String> drivers = problemSpec.getDriverOrder();
+        List<Tire> tires = problemSpec.getTireOrder();
+        int range = ProblemSpec.CAR_MOVE_RANGE;
+
+        cellTerrain = new int[problemSpec.getN()];
+
+        for (int cell = 0; cell < cellTerrain.length; cell++) {
+            cellTerrain[cell] = problemSpec.getTerrainIndex(problemSpec.getEnvironmentMap()[cell]);
+        }
+
+        moveCdf = new double[problemSpec.getNT() * cars.size() * drivers.size() * tires.size() *
+                TIRE_PRESSURES.size() * range];
+        fuelUsage = new int[problemSpec.getNT() * cars.size() * TIRE_PRESSURES.size()];
+
+        for (int terrain = 0; terrain < problemSpec.getNT(); terrain++) {
+            for (String c : cars) {
+                for (String d : drivers) {
+                    for (Tire t : tires) {
+                        for (TirePressure p : TIRE_PRESSURES) {
+                            // Same layout as the lookup in run()
+                            int config = ((problemSpec.getCarIndex(c) * drivers.size() +
+                                    drivers.indexOf(d)) * tires.size() + tires.indexOf(t)) *
+                                    TIRE_PRESSURES.size() + TIRE_PRESSURES.indexOf(p);
+                            int base = (terrain * cars.size() * drivers.size() * tires.size() *
+                                    TIRE_PRESSURES.size() + config) * range;
+
+                            double[] moveProbs = simulator.getMoveProbs(terrain, c, d, t, p);
+                            double cumulative = 0;
+
+                            for (int k = 0; k < range; k++) {
+                                cumulative += moveProbs[k];
+                                moveCdf[base + k] = cumulative;
+                            }
+                        }
+                    }
+                }
+
+                for (int p = 0; p < TIRE_PRESSURES.size(); p++) {
+                    fuelUsage[(terrain * cars.size() + problemSpec.getCarIndex(c)) *
+                            TIRE_PRESSURES.size() + p] = simulator.getFuelConsumption(terrain, c,
+                            TIRE_PRESSURES.get(p));
+                }
+            }
+        }
+
+        movePos = new int[range];
+        moveSteps = new int[range];
+
+        for (int k = 0; k < range; k++) {
+            int move = problemSpec.convertIndexIntoMove(k);
+
+            if (move == ProblemSpec.SLIP) {
+                moveSteps[k] = problemSpec.getSlipRecoveryTime();
+            } else if (move == ProblemSpec.BREAKDOWN) {
+                moveSteps[k] = problemSpec.getRepairTime();
+            } else {
+                movePos[k] = move;
+                moveSteps[k] = 1;
+            }
+        }
+
+        consumesFuel = problemSpec.getLevel().getLevelNumber() > 1 ? 1 : 0;
+    }
+}
@@ -0,0 +1,373 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.Simulator;
+import simulator.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Tunes the search constants for each level by racing random configurations against each other
+ * with successive halving. Every round, each surviving configuration plays the same seeded
+ * episodes (so they face the same move outcomes) on the level's example problems, and the better
+ * half by mean score goes through to the next round with twice the episodes. The episodes run in
+ * parallel on every core, each searching single threaded.
+ *
+ * The winner of each level is written to level_N.properties in the output directory, which
+ * mcts.constants can point a run at.
+ */
+public class ConstantsTuner {
+    /**
+     * Default number of configurations raced per level, the defaults included
+     */
+    private static final int DEFAULT_CONFIGURATIONS = 16;
+
+    /**
+     * Default search time per step, in millis
+     */
+    private static final int DEFAULT_STEP_TIME = 100;
+
+    /**
+     * Default number of episodes each configuration plays in the first round
+     */
+    private static final int DEFAULT_FIRST_ROUND_EPISODES = 4;
+
+    /**
+     * Range of the sampled win bonus
+     */
+    private static final double[] WIN_BONUS_RANGE = {0.5, 2};
+
+    /**
+     * Range of the sampled speed multiplier
+     */
+    private static final double[] SPEED_MULTIPLIER_RANGE = {0, 2};
+
+    /**
+     * Range of the sampled distance multiplier
+     */
+    private static final double[] DISTANCE_MULTIPLIER_RANGE = {0, 1};
+
+    /**
+     * Range of the sampled UCT exploration constant
+     */
+    private static final double[] EXPLORATION_RANGE = {0.25, 2.5};
+
+    /**
+     * Range of the sampled number of fuel intervals, inclusive
+     */
+    private static final int[] FUEL_INTERVALS_RANGE = {3, 10};
+
+    /**
+     * Search time per step, in millis
+     */
+    private int stepTime;
+
+    /**
+     * Number of episodes each configuration plays in the first round
+     */
+    private int firstRoundEpisodes;
+
+    /**
+     * Runs the episodes
+     */
+    private ExecutorService executor;
+
+    /**
+     * A configuration in the race and its results so far
+     */
+    private static class Entry {
+        /**
+         * The configuration
+         */
+        final SearchConstants constants;
+
+        /**
+         * Total score of the episodes played
+         */
+        double scoreSum;
+
+        /**
+         * Number of episodes played
+         */
+        int episodes;
+
+        /**
+         * Constructor
+         *
+         * @param constants the configuration
+         */
+        Entry(SearchConstants constants) {
+            this.constants = constants;
+        }
+
+        /**
+         * Get the mean episode score
+         *
+         * @return the mean score
+         */
+        double meanScore() {
+            return scoreSum / episodes;
+        }
+    }
+
+    /**
+     * A problem to play episodes of
+     */
+    private static class Problem {
+        /**
+         * The problem specification
+         */
+        final ProblemSpec ps;
+
+        /**
+         * The start state of its episodes
+         */
+        final State startState;
+
+        /**
+         * Constructor
+         *
+         * @param ps the problem specification
+         * @param startState the start state of its episodes
+         */
+        Problem(ProblemSpec ps, State startState) {
+            this.ps = ps;
+            this.startState = startState;
+        }
+    }
+
+    /**
+     * Entry point of the program
+     *
+     * @param args command line arguments. args[0] is the output directory, and optionally args[1]
+     * is the number of configurations per level, args[2] the search time per step (millis),
+     * args[3] the first round episodes per configuration, and any further arguments the input
+     * files to tune on. All the inputs under examples are used if none are given.
+     *
+     * @throws IOException if there is an error reading the inputs or writing the results
+     */
+    public static void main(String[] args) throws IOException {
+        String outputDirectory = args[0];
+        int configurations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONFIGURATIONS;
+        int stepTime = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_STEP_TIME;
+        int firstRoundEpisodes = args.length > 3 ? Integer.parseInt(args[3]) :
+                DEFAULT_FIRST_ROUND_EPISODES;
+        List<String> inputFiles = new ArrayList<>();
+
+        for (int i = 4; i < args.length; i++) {
+            inputFiles.add(args[i]);
+        }
+
+        if (inputFiles.isEmpty()) {
+            try (Stream<Path> paths = Files.walk(Paths.get("examples"))) {
+                inputFiles = paths.filter(p -> p.getFileName().toString().startsWith("input"))
+                        .map(Path::toString).sorted().collect(Collectors.toList());
+            }
+        }
+
+        // The support code simulator provides the start states, and always writes an output file
+        File output = File.createTempFile("tuner", ".txt");
+        output.deleteOnExit();
+
+        Map<Integer, List<Problem>> problemsByLevel = new TreeMap<>();
+
+        for (String inputFile : inputFiles) {
+            ProblemSpec ps = new ProblemSpec(inputFile);
+            State startState = new Simulator(ps, output.getPath()).reset();
+
+            problemsByLevel.computeIfAbsent(ps.getLevel().getLevelNumber(),
+                    k -> new ArrayList<>()).add(new Problem(ps, startState));
+        }
+
+        Files.createDirectories(Paths.get(outputDirectory));
+        ConstantsTuner tuner = new ConstantsTuner(stepTime, firstRoundEpisodes);
+
+        try {
+            for (Map.Entry<Integer, List<Problem>> level : problemsByLevel.entrySet()) {
+                SearchConstants best = tuner.tune(level.getValue(), configurations,
+                        new Random(level.getKey()));
+                Path file = Paths.get(outputDirectory, "level_" + level.getKey() + ".properties");
+
+                try (OutputStream out = Files.newOutputStream(file)) {
+                    best.toProperties().store(out, "Tuned search constants for level " +
+                            level.getKey());
+                }
+
+                System.out.println("Level " + level.getKey() + ": " + best + " written to " +
+                        file);
+            }
+        } finally {
+            tuner.close();
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param stepTime search time per step, in millis
+     * @param firstRoundEpisodes number of episodes each configuration plays in the first round
+     */
+    public ConstantsTuner(int stepTime, int firstRoundEpisodes) {
+        this.stepTime = stepTime;
+        this.firstRoundEpisodes = firstRoundEpisodes;
+
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Stop the episode threads
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Race random configurations, starting with the defaults, on a set of problems
+     *
+     * @param problems the problems, played in turn
+     * @param configurations the number of configurations
+     * @param random source of the sampled configurations
+     *
+     * @return the winning configuration
+     */
+    private SearchConstants tune(List<Problem> problems, int configurations, Random random) {
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry(SearchConstants.DEFAULT));
+
+        while (entries.size() < configurations) {
+            entries.add(new Entry(sample(random)));
+        }
+
+        int episodesPlayed = 0;
+        int roundEpisodes = firstRoundEpisodes;
+
+        for (int round = 1; entries.size() > 1; round++) {
+            List<Future<Double>> scores = new ArrayList<>();
+
+            for (Entry entry : entries) {
+                for (int i = 0; i < roundEpisodes; i++) {
+                    int episode = episodesPlayed + i;
+                    Problem problem = problems.get(episode % problems.size());
+                    scores.add(executor.submit(() -> playEpisode(problem, entry.constants,
+                            episode)));
+                }
+            }
+
+            int next = 0;
+
+            for (Entry entry : entries) {
+                for (int i = 0; i < roundEpisodes; i++) {
+                    entry.scoreSum += await(scores.get(next++));
+                    entry.episodes++;
+                }
+            }
+
+            episodesPlayed += roundEpisodes;
+            entries.sort(Comparator.comparingDouble(Entry::meanScore).reversed());
+            entries.subList((entries.size() + 1) / 2, entries.size()).clear();
+
+            System.out.println("Round " + round + ": best mean score " +
+                    entries.get(0).meanScore() + " (" + entries.get(0).constants + "), " +
+                    entries.size() + " configurations left");
+
+            roundEpisodes *= 2;
+        }
+
+        return entries.get(0).constants;
+    }
+
+    /**
+     * Wait for an episode's score
+     *
+     * @param score the running episode
+     *
+     * @return the score
+     */
+    private static double await(Future<Double> score) {
+        try {
+            return score.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while tuning", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Episode failed", e.getCause());
+        }
+    }
+
+    /**
+     * Sample a random configuration
+     *
+     * @param random the source of randomness
+     *
+     * @return the configuration
+     */
+    private static SearchConstants sample(Random random) {
+        return new SearchConstants(uniform(random, WIN_BONUS_RANGE),
+                uniform(random, SPEED_MULTIPLIER_RANGE), uniform(random, DISTANCE_MULTIPLIER_RANGE),
+                uniform(random, EXPLORATION_RANGE), FUEL_INTERVALS_RANGE[0] +
+                random.nextInt(FUEL_INTERVALS_RANGE[1] - FUEL_INTERVALS_RANGE[0] + 1));
+    }
+
+    /**
+     * Sample uniformly from a range
+     *
+     * @param random the source of randomness
+     * @param range the lower and upper bounds
+     *
+     * @return the sample
+     */
+    private static double uniform(Random random, double[] range) {
+        return range[0] + random.nextDouble() * (range[1] - range[0]);
+    }
+
+    /**
+     * Play a seeded episode with a configuration. The score uses the default reward shape
+     * whatever the configuration, so configurations are compared on the same scale.
+     *
+     * @param problem the problem
+     * @param constants the configuration
+     * @param seed the seed of the simulator's move samples
+     *
+     * @return the episode score
+     */
+    private double playEpisode(Problem problem, SearchConstants constants, long seed) {
+        ProblemSpec ps = problem.ps;
+        MCTS mcts = new MCTS(ps, constants);
+        Main.configureSearch(ps, mcts);
+
+        FromStateSimulator sim = new FromStateSimulator(ps);
+        sim.setRandom(new Random(seed));
+        sim.setStartState(problem.startState, 0);
+
+        while (true) {
+            mcts.reset(sim.getCurrentState(), sim.getSteps(), stepTime);
+            Action action = mcts.getBestAction();
+            int status = sim.step(action);
+
+            if (status == FromStateSimulator.WIN) {
+                return SearchConstants.DEFAULT.winReward(sim.getSteps(), ps.getMaxT());
+            } else if (status == FromStateSimulator.LOSS) {
+                return SearchConstants.DEFAULT.lossReward(sim.getCurrentState().getPos(),
+                        ps.getN());
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.Simulator;
+import simulator.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Hosts many problem sessions in one process, running all their pending decisions on one shared
+ * work stealing pool instead of one JVM per race competing for the cores.
+ *
+ * Each decision's search is run in short slices. Whenever a pool thread is free it first answers
+ * every waiting decision whose deadline has passed, then runs a slice of the one which has had the
+ * smallest share of the time until its deadline so far. Every decision progresses in proportion to
+ * its budget, and is answered within a slice of its deadline however many are pending. A
+ * decision's search is only ever run by one thread at a time.
+ *
+ * Problems loaded from files with identical contents share one model: the problem spec and, with
+ * the steps to goal leaf evaluator, its precomputed move tables.
+ */
+public class DecisionScheduler implements AutoCloseable {
+    /**
+     * Length of a search slice, in nanos
+     */
+    static final long SLICE_NANOS = 5000000;
+
+    /**
+     * Nanoseconds in a millisecond
+     */
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    /**
+     * The shared pool running the search slices
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Pending decisions which aren't running a slice, the one furthest behind its share first
+     */
+    private PriorityQueue<Decision> ready = new PriorityQueue<>(
+            Comparator.comparingDouble(Decision::share).thenComparingLong(d -> d.deadline));
+
+    /**
+     * The same decisions as ready, the earliest deadline first. Guarded by ready.
+     */
+    private PriorityQueue<Decision> readyByDeadline = new PriorityQueue<>(
+            Comparator.comparingLong(d -> d.deadline));
+
+    /**
+     * Every decision which hasn't been answered, whether ready or running a slice
+     */
+    private Set<Decision> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether the scheduler has been closed
+     */
+    private volatile boolean closed;
+
+    /**
+     * Loaded problem models, keyed by file hash
+     */
+    private ConcurrentHashMap<String, ProblemModel> models = new ConcurrentHashMap<>();
+
+    /**
+     * A loaded problem, shared by every session of a problem file with the same contents
+     */
+    private static class ProblemModel {
+        /**
+         * The problem specification
+         */
+        final ProblemSpec ps;
+
+        /**
+         * Steps to goal evaluator shared by the sessions, if that leaf evaluator is configured
+         */
+        final StepsToGoalEvaluator stepsToGoal;
+
+        /**
+         * Constructor
+         *
+         * @param ps the problem specification
+         */
+        ProblemModel(ProblemSpec ps) {
+            this.ps = ps;
+
+            stepsToGoal = System.getProperty(Main.LEAF_EVALUATOR_PROPERTY, "").equals("steps") ?
+                    new StepsToGoalEvaluator(ps, SearchConstants.fromProperties()) : null;
+        }
+    }
+
+    /**
+     * A decision waiting for its search to finish
+     */
+    private static class Decision {
+        /**
+         * The session deciding
+         */
+        final Session session;
+
+        /**
+         * System.nanoTime() of the decision's deadline
+         */
+        final long deadline;
+
+        /**
+         * The decision's budget, in nanos
+         */
+        final long budget;
+
+        /**
+         * Search time the decision has had so far, in nanos
+         */
+        long used;
+
+        /**
+         * Completed with the chosen action
+         */
+        final CompletableFuture<Action> result = new CompletableFuture<>();
+
+        /**
+         * Constructor
+         *
+         * @param session the session deciding
+         * @param budget the decision's budget, in nanos
+         */
+        Decision(Session session, long budget) {
+            this.session = session;
+            this.budget = budget;
+            this.deadline = System.nanoTime() + budget;
+        }
+
+        /**
+         * Get the fraction of its budget the decision has had
+         *
+         * @return the share
+         */
+        double share() {
+            return used / (double) budget;
+        }
+    }
+
+    /**
+     * A problem session hosted by the scheduler. Its decisions are searched on the shared pool,
+     * one at a time.
+     */
+    public class Session implements Planner {
+        /**
+         * The shared problem model
+         */
+        private ProblemModel model;
+
+        /**
+         * The session's own search tree
+         */
+        private MCTS mcts;
+
+        /**
+         * Constructor
+         *
+         * @param model the shared problem model
+         */
+        private Session(ProblemModel model) {
+            this.model = model;
+
+            mcts = new MCTS(model.ps);
+            Main.configureSearch(model.ps, mcts);
+
+            if (model.stepsToGoal != null) {
+                mcts.setLeafEvaluator(model.stepsToGoal);
+            }
+        }
+
+        /**
+         * Get the problem the session is for
+         *
+         * @return the problem specification
+         */
+        public ProblemSpec getProblemSpec() {
+            return model.ps;
+        }
+
+        /**
+         * Start a decision without waiting for it
+         *
+         * @param state the current state
+         * @param stepsDone the number of steps done so far
+         * @param budget the time to decide in, in millis
+         *
+         * @return completed with the chosen action at the deadline
+         */
+        public CompletableFuture<Action> submit(State state, int stepsDone, int budget) {
+            mcts.reset(state, stepsDone, budget);
+            mcts.beginSearch();
+
+            Decision decision = new Decision(this, budget * NANOS_PER_MILLI);
+            pending.add(decision);
+            decision.result.whenComplete((action, e) -> pending.remove(decision));
+
+            if (closed) {
+                decision.result.completeExceptionally(
+                        new CancellationException("The scheduler is closed"));
+            } else {
+                schedule(decision);
+            }
+
+            return decision.result;
+        }
+
+        @Override
+        public Action decide(State state, int stepsDone, int budget) {
+            return submit(state, stepsDone, budget).join();
+        }
+
+        @Override
+        public void observe(Action action, State newState) {
+            // Every decision searches a new tree
+        }
+
+        @Override
+        public void close() {
+            // The model stays loaded for other sessions
+        }
+    }
+
+    /**
+     * Entry point of the program, which runs several problems at once on one scheduler
+     *
+     * @param args command line arguments, pairs of input and output files
+     *
+     * @throws IOException if there is an error handling the input or output files
+     */
+    public static void main(String[] args) throws IOException {
+        List<Thread> races = new ArrayList<>();
+
+        try (DecisionScheduler scheduler = new DecisionScheduler(
+                Runtime.getRuntime().availableProcessors())) {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String inputFile = args[i];
+                Session session = scheduler.openSession(inputFile);
+                Simulator sim = new Simulator(session.getProblemSpec(), args[i + 1]);
+
+                // The race threads only wait on decisions, the searching is done by the pool
+                Thread race = new Thread(() -> {
+                    boolean solved = Main.simulateProblem(sim, session, Main.STEP_TIME_LIMIT);
+                    System.out.println(inputFile + ": " +
+                            (solved ? "Simulation successful." : "Simulation failed."));
+                });
+
+                race.start();
+                races.add(race);
+            }
+
+            for (Thread race : races) {
+                race.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create a scheduler
+     *
+     * @param parallelism the number of pool threads, usually the number of cores
+     */
+    public DecisionScheduler(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Open a session for a problem, sharing the model of any problem file with the same contents
+     * already loaded
+     *
+     * @param problemFile the problem input file
+     *
+     * @return the session
+     *
+     * @throws IOException if the file can't be read
+     */
+    public Session openSession(String problemFile) throws IOException {
+        String hash = PolicyCache.fileHash(problemFile);
+        ProblemModel model = models.get(hash);
+
+        if (model == null) {
+            model = new ProblemModel(new ProblemSpec(problemFile));
+            ProblemModel existing = models.putIfAbsent(hash, model);
+
+            if (existing != null) {
+                model = existing;
+            }
+        }
+
+        return new Session(model);
+    }
+
+    /**
+     * Make a decision ready for its next slice, and have the pool run one
+     *
+     * @param decision the decision
+     */
+    private void schedule(Decision decision) {
+        synchronized (ready) {
+            ready.add(decision);
+            readyByDeadline.add(decision);
+        }
+
+        // One slice task per ready decision, so a free pool thread always has one to run
+        pool.execute(this::runSlice);
+    }
+
+    /**
+     * Answer the ready decisions past their deadline, then run a slice of the ready decision
+     * furthest behind its share and answer it if its search is finished or put it back otherwise
+     */
+    private void runSlice() {
+        List<Decision> overdue = new ArrayList<>();
+        Decision decision;
+
+        synchronized (ready) {
+            long now = System.nanoTime();
+
+            while (!readyByDeadline.isEmpty() && readyByDeadline.peek().deadline <= now) {
+                Decision late = readyByDeadline.poll();
+                ready.remove(late);
+                overdue.add(late);
+            }
+
+            decision = ready.poll();
+
+            if (decision != null) {
+                readyByDeadline.remove(decision);
+            }
+        }
+
+        // Overdue decisions are answered with what they have, another slice would only delay them
+        for (Decision late : overdue) {
+            answer(late);
+        }
+
+        if (decision == null) {
+            return;
+        }
+
+        MCTS mcts = decision.session.mcts;
+
+        try {
+            long start = System.nanoTime();
+            boolean finished = mcts.searchUntil(start + SLICE_NANOS);
+            decision.used += System.nanoTime() - start;
+
+            if (finished) {
+                answer(decision);
+            } else {
+                schedule(decision);
+            }
+        } catch (RuntimeException e) {
+            decision.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Answer a decision with the best action its search has found
+     *
+     * @param decision the decision
+     */
+    private void answer(Decision decision) {
+        try {
+            decision.result.complete(decision.session.mcts.getSearchResult());
+        } catch (RuntimeException e) {
+            decision.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Stop the pool. Pending decisions are completed exceptionally, so nothing waits on them.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        pool.shutdownNow();
+
+        for (Decision decision : pending) {
+            decision.result.completeExceptionally(
+                    new CancellationException("The scheduler was closed"));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package solution;
+
+import problem.ProblemSpec;
+import simulator.State;
+
+/**
+ * Leaf evaluator which scores a state by the distance travelled along the track, in the same way
+ * MCTS scores a lost playout.
+ */
+public class DistanceEvaluator implements LeafEvaluator {
+    /**
+     * The problem specification
+     */
+    private ProblemSpec problemSpec;
+
+    /**
+     * The reward shape of the search
+     */
+    private SearchConstants constants;
+
+    /**
+     * Create a distance evaluator for a problem
+     *
+     * @param problemSpec the problem specification
+     * @param constants the reward shape of the search
+     */
+    public DistanceEvaluator(ProblemSpec problemSpec, SearchConstants constants) {
+        this.problemSpec = problemSpec;
+        this.constants = constants;
+    }
+
+    @Override
+    public double evaluate(State state, int steps) {
+        return constants.lossReward(state.getPos(), problemSpec.getN());
+    }
+}
@@ -0,0 +1,315 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.State;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every step of the episodes played into a compact binary trace file. Steps are encoded
+ * into a preallocated ring buffer by the thread playing the episode and written out by a
+ * background thread, so recording a step costs a few hundred nanoseconds and never waits on the
+ * file. If the writer falls a whole ring behind, steps are dropped and counted rather than
+ * blocking.
+ *
+ * The file starts with MAGIC and VERSION, followed by length prefixed records: an int payload
+ * length, a byte record type and the payload. A HEADER record, written first, holds the problem
+ * file and the names the STEP records refer to by index (cars, drivers and action texts). Each
+ * STEP record holds the episode, the state decided from, the chosen action, the planner's search
+ * statistics and the outcome of the step. EpisodeTraceReader converts traces to CSV.
+ */
+public class EpisodeTrace implements AutoCloseable {
+    /**
+     * Identifies a trace file
+     */
+    static final int MAGIC = 0x4d435452;
+
+    /**
+     * Version of the trace format
+     */
+    static final short VERSION = 1;
+
+    /**
+     * Record type of the header
+     */
+    static final byte HEADER = 1;
+
+    /**
+     * Record type of a step
+     */
+    static final byte STEP = 2;
+
+    /**
+     * Size of a step record's payload: episode, steps done, position, fuel, slip and breakdown
+     * flags, car, driver, tire, pressure, action, iterations, live nodes, decision time, steps
+     * done after the step and outcome
+     */
+    static final int STEP_BYTES = 32;
+
+    /**
+     * Size of a whole step record, including its length and type
+     */
+    private static final int STEP_RECORD_BYTES = STEP_BYTES + 5;
+
+    /**
+     * Number of step records the ring buffer holds. Must be a power of two.
+     */
+    private static final int RING_CAPACITY = 1 << 12;
+
+    /**
+     * How long the writer sleeps when the ring buffer is empty, in nanoseconds
+     */
+    private static final long IDLE_PARK_TIME = 1000000;
+
+    /**
+     * Bit of the flags byte set when the state is in slip condition
+     */
+    static final int SLIP_FLAG = 1;
+
+    /**
+     * Bit of the flags byte set when the state is in breakdown condition
+     */
+    static final int BREAKDOWN_FLAG = 2;
+
+    /**
+     * The encoded step records, RING_CAPACITY slots of STEP_RECORD_BYTES
+     */
+    private ByteBuffer ring = ByteBuffer.allocate(RING_CAPACITY * STEP_RECORD_BYTES);
+
+    /**
+     * Sequence number of the next record the writer will write
+     */
+    private AtomicLong head = new AtomicLong();
+
+    /**
+     * Sequence number of the next record to be recorded. Only the recording thread changes it.
+     */
+    private AtomicLong tail = new AtomicLong();
+
+    /**
+     * The output file
+     */
+    private DataOutputStream out;
+
+    /**
+     * The background thread writing the records
+     */
+    private Thread writerThread;
+
+    /**
+     * Set when the trace is closed, the writer finishes the records left and stops
+     */
+    private volatile boolean closed;
+
+    /**
+     * Number of step records dropped because the ring buffer was full
+     */
+    private int dropped;
+
+    /**
+     * Index of each car in the header
+     */
+    private Map<String, Integer> carIndexes = new HashMap<>();
+
+    /**
+     * Index of each driver in the header
+     */
+    private Map<String, Integer> driverIndexes = new HashMap<>();
+
+    /**
+     * Index of each action's text in the header
+     */
+    private Map<String, Integer> actionIndexes = new HashMap<>();
+
+    /**
+     * Number of the current episode, starting from 1
+     */
+    private int episode;
+
+    /**
+     * Create (or truncate) a trace file, write its header and start the writer thread
+     *
+     * @param path the trace file
+     * @param ps the problem being played
+     * @param problemFile the problem input file
+     *
+     * @throws IOException if the file can't be created
+     */
+    public EpisodeTrace(String path, ProblemSpec ps, String problemFile) throws IOException {
+        List<String> actionTexts = new ArrayList<>();
+
+        for (Action action : MCTS.makeValidActionsDiscretized(ps)) {
+            actionIndexes.put(action.getText(), actionTexts.size());
+            actionTexts.add(action.getText());
+        }
+
+        for (String car : ps.getCarOrder()) {
+            carIndexes.put(car, carIndexes.size());
+        }
+
+        for (String driver : ps.getDriverOrder()) {
+            driverIndexes.put(driver, driverIndexes.size());
+        }
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+
+        // The header isn't on the search path, so it is written directly
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeUTF(problemFile);
+        writeNames(header, ps.getCarOrder());
+        writeNames(header, ps.getDriverOrder());
+        writeNames(header, actionTexts);
+
+        out.writeInt(bytes.size());
+        out.writeByte(HEADER);
+        bytes.writeTo(out);
+
+        writerThread = new Thread(this::writeRecords, "episode-trace");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Write a list of names, preceded by its size
+     *
+     * @param out the output to write to
+     * @param names the names
+     *
+     * @throws IOException if there is an error writing
+     */
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeShort(names.size());
+
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    /**
+     * Start recording a new episode
+     */
+    public void startEpisode() {
+        episode++;
+    }
+
+    /**
+     * Record a step of the current episode. Must be called from a single thread.
+     *
+     * @param stepsDone steps done when the action was chosen
+     * @param state the state the action was chosen in
+     * @param action the chosen action
+     * @param iterations search iterations run for the decision, 0 if it wasn't searched
+     * @param liveNodes nodes in the search tree for the decision, 0 if it wasn't searched
+     * @param decisionMicros time taken by the decision, in microseconds
+     * @param stepsAfter steps done after the action was performed
+     * @param outcome FromStateSimulator.IN_PROGRESS, WIN or LOSS after the step
+     */
+    public void record(int stepsDone, State state, Action action, int iterations, int liveNodes,
+                       long decisionMicros, int stepsAfter, int outcome) {
+        long sequence = tail.get();
+
+        if (sequence - head.get() >= RING_CAPACITY) {
+            dropped++;
+            return;
+        }
+
+        Integer actionIndex = actionIndexes.get(action.getText());
+        int position = (int) (sequence & (RING_CAPACITY - 1)) * STEP_RECORD_BYTES;
+        int flags = (state.isInSlipCondition() ? SLIP_FLAG : 0) |
+                (state.isInBreakdownCondition() ? BREAKDOWN_FLAG : 0);
+
+        ring.putInt(position, STEP_BYTES);
+        ring.put(position + 4, STEP);
+        ring.putInt(position + 5, episode);
+        ring.putShort(position + 9, (short) stepsDone);
+        ring.putShort(position + 11, (short) state.getPos());
+        ring.putShort(position + 13, (short) state.getFuel());
+        ring.put(position + 15, (byte) flags);
+        ring.put(position + 16, (byte) (int) carIndexes.get(state.getCarType()));
+        ring.put(position + 17, (byte) (int) driverIndexes.get(state.getDriver()));
+        ring.put(position + 18, (byte) state.getTireModel().ordinal());
+        ring.put(position + 19, (byte) state.getTirePressure().ordinal());
+        ring.putShort(position + 20, (short) (actionIndex == null ? -1 : actionIndex));
+        ring.putInt(position + 22, iterations);
+        ring.putInt(position + 26, liveNodes);
+        ring.putInt(position + 30, (int) Math.min(decisionMicros, Integer.MAX_VALUE));
+        ring.putShort(position + 34, (short) stepsAfter);
+        ring.put(position + 36, (byte) outcome);
+
+        // Publishes the record to the writer
+        tail.lazySet(sequence + 1);
+    }
+
+    /**
+     * Write the records still in the ring buffer, then stop the writer and close the file
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (dropped > 0) {
+            System.out.println("Episode trace dropped " + dropped + " steps");
+        }
+    }
+
+    /**
+     * Body of the writer thread: copy records from the ring buffer to the file until closed
+     */
+    private void writeRecords() {
+        byte[] record = new byte[STEP_RECORD_BYTES];
+
+        try {
+            while (true) {
+                long sequence = head.get();
+
+                if (sequence == tail.get()) {
+                    if (closed && sequence == tail.get()) {
+                        break;
+                    }
+
+                    out.flush();
+                    LockSupport.parkNanos(IDLE_PARK_TIME);
+                    continue;
+                }
+
+                int position = (int) (sequence & (RING_CAPACITY - 1)) * STEP_RECORD_BYTES;
+
+                System.arraycopy(ring.array(), position, record, 0, STEP_RECORD_BYTES);
+
+                // Frees the slot for the recording thread
+                head.lazySet(sequence + 1);
+                out.write(record);
+            }
+        } catch (IOException e) {
+            System.out.println("Episode trace failed: " + e.getMessage());
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.out.println("Episode trace failed: " + e.getMessage());
+            }
+        }
+    }
+}
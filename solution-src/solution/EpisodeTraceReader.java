@@ -0,0 +1,157 @@
+package solution;
+
+import problem.Tire;
+import problem.TirePressure;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts an episode trace written by EpisodeTrace to CSV, one row per step
+ */
+public class EpisodeTraceReader {
+    /**
+     * Columns of the CSV output
+     */
+    private static final String CSV_HEADER = "problem,episode,steps,pos,fuel,slip,breakdown,car," +
+            "driver,tire,pressure,action,iterations,live_nodes,decision_us,steps_after,outcome";
+
+    /**
+     * Names of the step outcomes, indexed by FromStateSimulator.IN_PROGRESS, WIN and LOSS
+     */
+    private static final String[] OUTCOMES = {"in_progress", "win", "loss"};
+
+    /**
+     * Entry point of the program
+     *
+     * @param args command line arguments. args[0] is the trace file, and args[1] is optionally the
+     * CSV file to write, otherwise the CSV is written to standard output.
+     *
+     * @throws IOException if there is an error reading the trace or writing the CSV
+     */
+    public static void main(String[] args) throws IOException {
+        PrintWriter csv = new PrintWriter(new OutputStreamWriter(args.length > 1 ?
+                new FileOutputStream(args[1]) : System.out, StandardCharsets.UTF_8));
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(args[0])))) {
+            convert(in, csv);
+        } finally {
+            csv.flush();
+
+            if (args.length > 1) {
+                csv.close();
+            }
+        }
+    }
+
+    /**
+     * Convert a trace to CSV
+     *
+     * @param in the trace
+     * @param csv the CSV output
+     *
+     * @throws IOException if the trace is invalid or can't be read
+     */
+    public static void convert(DataInputStream in, PrintWriter csv) throws IOException {
+        if (in.readInt() != EpisodeTrace.MAGIC) {
+            throw new IOException("Not an episode trace");
+        }
+
+        short version = in.readShort();
+
+        if (version != EpisodeTrace.VERSION) {
+            throw new IOException("Unsupported episode trace version " + version);
+        }
+
+        String problem = "";
+        String[] cars = new String[0];
+        String[] drivers = new String[0];
+        String[] actions = new String[0];
+
+        csv.println(CSV_HEADER);
+
+        while (true) {
+            int length;
+
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+
+            byte type = in.readByte();
+
+            if (type == EpisodeTrace.HEADER) {
+                problem = in.readUTF();
+                cars = readNames(in);
+                drivers = readNames(in);
+                actions = readNames(in);
+            } else if (type == EpisodeTrace.STEP && length == EpisodeTrace.STEP_BYTES) {
+                int episode = in.readInt();
+                int steps = in.readShort();
+                int pos = in.readShort();
+                int fuel = in.readShort();
+                int flags = in.readByte();
+                String car = cars[in.readByte()];
+                String driver = drivers[in.readByte()];
+                Tire tire = Tire.values()[in.readByte()];
+                TirePressure pressure = TirePressure.values()[in.readByte()];
+                int action = in.readShort();
+                int iterations = in.readInt();
+                int liveNodes = in.readInt();
+                int decisionMicros = in.readInt();
+                int stepsAfter = in.readShort();
+                int outcome = in.readByte();
+
+                csv.println(quote(problem) + "," + episode + "," + steps + "," + pos + "," +
+                        fuel + "," + ((flags & EpisodeTrace.SLIP_FLAG) != 0) + "," +
+                        ((flags & EpisodeTrace.BREAKDOWN_FLAG) != 0) + "," + quote(car) + "," +
+                        quote(driver) + "," + tire + "," + pressure + "," +
+                        quote(action < 0 ? "" : actions[action]) + "," + iterations + "," +
+                        liveNodes + "," + decisionMicros + "," + stepsAfter + "," +
+                        OUTCOMES[outcome]);
+            } else {
+                // A record this reader doesn't know, the length prefix lets it be skipped
+                in.readFully(new byte[length]);
+            }
+        }
+    }
+
+    /**
+     * Read a list of names written by EpisodeTrace
+     *
+     * @param in the trace
+     *
+     * @return the names
+     *
+     * @throws IOException if the trace can't be read
+     */
+    private static String[] readNames(DataInputStream in) throws IOException {
+        String[] names = new String[in.readShort()];
+
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+
+        return names;
+    }
+
+    /**
+     * Quote a CSV field
+     *
+     * @param field the field
+     *
+     * @return the quoted field
+     */
+    private static String quote(String field) {
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,426 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Offline solver for problems with a small state space. Enumerates every state reachable from a
+ * start state using the same transition model as FromStateSimulator, then runs value iteration
+ * to find the policy which minimizes the expected number of steps to the goal. The transition
+ * model and values are stored in primitive arrays and each sweep is run in parallel.
+ */
+public class ExactSolver {
+    /**
+     * Highest problem level the solver will be tried on
+     */
+    static final int MAX_LEVEL = 2;
+
+    /**
+     * Largest number of reachable states the solver will enumerate before giving up
+     */
+    static final int MAX_STATES = 500000;
+
+    /**
+     * Value iteration stops once no state value changes by more than this
+     */
+    private static final double CONVERGENCE_THRESHOLD = 1e-6;
+
+    /**
+     * Maximum number of value iteration sweeps
+     */
+    private static final int MAX_SWEEPS = 10000;
+
+    /**
+     * The problem specification
+     */
+    private ProblemSpec problemSpec;
+
+    /**
+     * Simulator used to apply the deterministic actions and calculate move distributions
+     */
+    private FromStateSimulator simulator;
+
+    /**
+     * All possible actions given this problemSpec
+     */
+    private ArrayList<Action> actions;
+
+    /**
+     * Id of each enumerated state, keyed by the state's string representation
+     */
+    private HashMap<String, Integer> stateIds;
+
+    /**
+     * The enumerated states, indexed by id
+     */
+    private ArrayList<State> states;
+
+    /**
+     * Whether each state is a goal state
+     */
+    private boolean[] terminal;
+
+    /**
+     * Start of the outcomes of each (state, action) pair, indexed by state * actions + action.
+     * The outcomes of a pair end where the next pair's start.
+     */
+    private int[] outcomeStart;
+
+    /**
+     * Id of the state reached by each outcome
+     */
+    private int[] outcomeState;
+
+    /**
+     * Probability of each outcome
+     */
+    private double[] outcomeProb;
+
+    /**
+     * Number of time steps used by each outcome
+     */
+    private double[] outcomeCost;
+
+    /**
+     * Number of outcomes stored
+     */
+    private int outcomeCount;
+
+    /**
+     * Expected steps to the goal from each state
+     */
+    private double[] values;
+
+    /**
+     * Index of the best action from each state
+     */
+    private int[] policy;
+
+    /**
+     * Create a solver for a problem
+     *
+     * @param problemSpec the problem specification
+     */
+    public ExactSolver(ProblemSpec problemSpec) {
+        this.problemSpec = problemSpec;
+
+        simulator = new FromStateSimulator(problemSpec);
+        actions = MCTS.makeValidActionsDiscretized(problemSpec);
+    }
+
+    /**
+     * Determine whether the solver should be tried on a problem
+     *
+     * @param problemSpec the problem specification
+     *
+     * @return whether the problem level is small enough to solve exactly
+     */
+    public static boolean isApplicable(ProblemSpec problemSpec) {
+        return problemSpec.getLevel().getLevelNumber() <= MAX_LEVEL;
+    }
+
+    /**
+     * Enumerate the states reachable from a start state and compute the optimal policy
+     *
+     * @param startState the start state
+     *
+     * @return whether the problem was solved. false if the state space was too large
+     */
+    public boolean solve(State startState) {
+        if (!enumerateStates(startState)) {
+            return false;
+        }
+
+        valueIteration();
+        return true;
+    }
+
+    /**
+     * Get the optimal action from a state
+     *
+     * @param state the state
+     *
+     * @return the optimal action, or null if the state was not enumerated
+     */
+    public Action getAction(State state) {
+        Integer id = stateIds.get(state.toString());
+
+        if (id == null || terminal[id]) {
+            return null;
+        }
+
+        return actions.get(policy[id]);
+    }
+
+    /**
+     * Get the expected number of steps to the goal from a state under the optimal policy
+     *
+     * @param state the state
+     *
+     * @return the expected number of steps, or NaN if the state was not enumerated
+     */
+    public double getExpectedSteps(State state) {
+        Integer id = stateIds.get(state.toString());
+        return id == null ? Double.NaN : values[id];
+    }
+
+    /**
+     * Get the number of states enumerated
+     *
+     * @return the number of states
+     */
+    public int getStateCount() {
+        return states.size();
+    }
+
+    /**
+     * Breadth first enumeration of all the states reachable from the start state, recording the
+     * outcomes of every action in each state
+     *
+     * @param startState the start state
+     *
+     * @return whether the enumeration finished within MAX_STATES
+     */
+    private boolean enumerateStates(State startState) {
+        stateIds = new HashMap<>();
+        states = new ArrayList<>();
+        outcomeStart = new int[1024];
+        outcomeState = new int[1024];
+        outcomeProb = new double[1024];
+        outcomeCost = new double[1024];
+        outcomeCount = 0;
+
+        stateId(startState);
+
+        for (int id = 0; id < states.size(); id++) {
+            if (states.size() > MAX_STATES) {
+                return false;
+            }
+
+            State state = states.get(id);
+
+            for (int a = 0; a < actions.size(); a++) {
+                int pair = id * actions.size() + a;
+
+                if (pair >= outcomeStart.length) {
+                    outcomeStart = Arrays.copyOf(outcomeStart, outcomeStart.length * 2);
+                }
+
+                outcomeStart[pair] = outcomeCount;
+
+                if (!simulator.isGoalState(state)) {
+                    addOutcomes(state, actions.get(a));
+                }
+            }
+        }
+
+        int pairs = states.size() * actions.size();
+        outcomeStart = Arrays.copyOf(outcomeStart, pairs + 1);
+        outcomeStart[pairs] = outcomeCount;
+
+        terminal = new boolean[states.size()];
+
+        for (int id = 0; id < states.size(); id++) {
+            terminal[id] = simulator.isGoalState(states.get(id));
+        }
+
+        return true;
+    }
+
+    /**
+     * Record all the outcomes of performing an action in a state
+     *
+     * @param state the state
+     * @param action the action
+     */
+    private void addOutcomes(State state, Action action) {
+        if (action.getActionType().getActionNo() != 1) {
+            // Every other action is deterministic, so let the simulator apply it
+            simulator.setStartState(state, 0);
+            simulator.step(action);
+            addOutcome(simulator.getCurrentState(), 1, simulator.getSteps());
+            return;
+        }
+
+        int terrainIndex = problemSpec.getTerrainIndex(
+                problemSpec.getEnvironmentMap()[state.getPos() - 1]);
+        int fuelRequired = simulator.getFuelConsumption(terrainIndex, state.getCarType(),
+                state.getTirePressure());
+
+        if (fuelRequired > state.getFuel()) {
+            // Not enough fuel to move, the step is wasted
+            addOutcome(state, 1, 1);
+            return;
+        }
+
+        double[] moveProbs = simulator.getMoveProbs(terrainIndex, state.getCarType(),
+                state.getDriver(), state.getTireModel(), state.getTirePressure());
+
+        for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
+            if (moveProbs[k] == 0) {
+                continue;
+            }
+
+            int move = problemSpec.convertIndexIntoMove(k);
+            State nextState;
+            int cost;
+
+            if (move == ProblemSpec.SLIP) {
+                nextState = state;
+                cost = problemSpec.getSlipRecoveryTime();
+            } else if (move == ProblemSpec.BREAKDOWN) {
+                nextState = state;
+                cost = problemSpec.getRepairTime();
+            } else {
+                nextState = state.changePosition(move, problemSpec.getN());
+                cost = 1;
+            }
+
+            if (problemSpec.getLevel().getLevelNumber() > 1) {
+                nextState = nextState.consumeFuel(fuelRequired);
+            }
+
+            addOutcome(nextState, moveProbs[k], cost);
+        }
+    }
+
+    /**
+     * Record a single outcome of the current (state, action) pair
+     *
+     * @param nextState the state reached
+     * @param prob the probability of the outcome
+     * @param cost the number of steps used
+     */
+    private void addOutcome(State nextState, double prob, int cost) {
+        if (outcomeCount == outcomeState.length) {
+            int length = outcomeState.length * 2;
+            outcomeState = Arrays.copyOf(outcomeState, length);
+            outcomeProb = Arrays.copyOf(outcomeProb, length);
+            outcomeCost = Arrays.copyOf(outcomeCost, length);
+        }
+
+        outcomeState[outcomeCount] = stateId(nextState);
+        outcomeProb[outcomeCount] = prob;
+        outcomeCost[outcomeCount] = cost;
+        outcomeCount++;
+    }
+
+    /**
+     * Get the id of a state, adding it to the enumeration if it hasn't been seen before
+     *
+     * @param state the state
+     *
+     * @return the id of the state
+     */
+    private int stateId(State state) {
+        String key = state.toString();
+        Integer id = stateIds.get(key);
+
+        if (id == null) {
+            id = states.size();
+            stateIds.put(key, id);
+            states.add(state.copyState());
+        }
+
+        return id;
+    }
+
+    /**
+     * Run value iteration until the values converge. Each sweep reads the previous values and
+     * writes new ones, so the states can be updated in parallel.
+     */
+    private void valueIteration() {
+        int stateCount = states.size();
+
+        // Expected step counts beyond maxT are all equally a loss, so cap the values there. This
+        // also keeps states which can never reach the goal finite.
+        double cap = problemSpec.getMaxT() + 1;
+
+        values = new double[stateCount];
+        policy = new int[stateCount];
+        double[] nextValues = new double[stateCount];
+
+        for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+            double[] current = values;
+            double[] next = nextValues;
+
+            double maxChange = IntStream.range(0, stateCount).parallel().mapToDouble(id -> {
+                next[id] = terminal[id] ? 0 : Math.min(cap, bestActionValue(id, current));
+                return Math.abs(next[id] - current[id]);
+            }).max().orElse(0);
+
+            nextValues = values;
+            values = next;
+
+            if (maxChange < CONVERGENCE_THRESHOLD) {
+                break;
+            }
+        }
+
+        double[] converged = values;
+        IntStream.range(0, stateCount).parallel().forEach(id -> policy[id] = bestAction(id,
+                converged));
+    }
+
+    /**
+     * The expected steps to the goal of the best action from a state
+     *
+     * @param id the state id
+     * @param current the current value estimates
+     *
+     * @return the lowest expected steps over all actions
+     */
+    private double bestActionValue(int id, double[] current) {
+        return actionValue(id, bestAction(id, current), current);
+    }
+
+    /**
+     * The index of the action with the lowest expected steps to the goal from a state
+     *
+     * @param id the state id
+     * @param current the current value estimates
+     *
+     * @return the index of the best action
+     */
+    private int bestAction(int id, double[] current) {
+        int best = 0;
+        double bestValue = Double.POSITIVE_INFINITY;
+
+        for (int a = 0; a < actions.size(); a++) {
+            double value = actionValue(id, a, current);
+
+            if (value < bestValue) {
+                bestValue = value;
+                best = a;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * The expected steps to the goal of performing an action in a state
+     *
+     * @param id the state id
+     * @param a the action index
+     * @param current the current value estimates
+     *
+     * @return the expected steps
+     */
+    private double actionValue(int id, int a, double[] current) {
+        int pair = id * actions.size() + a;
+        double value = 0;
+
+        for (int o = outcomeStart[pair]; o < outcomeStart[pair + 1]; o++) {
+            value += outcomeProb[o] * (outcomeCost[o] + current[outcomeState[o]]);
+        }
+
+        return value;
+    }
+}
@@ -3,10 +3,12 @@ package solution;
 import problem.*;
 import simulator.State;
 
+import java.util.Random;
+
 /**
  * Simulate a playout from a state
  */
-public class FromStateSimulator {
+public class FromStateSimulator implements StepSimulator {
     public static final int IN_PROGRESS = 0;
     public static final int WIN = 1;
     public static final int LOSS = 2;
@@ -20,6 +22,14 @@ public class FromStateSimulator {
     /** Whether to print progress messages or not
      * Feel free to change this if you don't want messages printed **/
     private boolean verbose = false;
+    /** Value of lastMoveIndex when no move distance was sampled **/
+    public static final int NO_MOVE = -1;
+    /** Index of the move distance sampled by the latest step, or NO_MOVE **/
+    private int lastMoveIndex = NO_MOVE;
+    /** Move index to use instead of sampling when replaying a step, or NO_MOVE **/
+    private int forcedMoveIndex = NO_MOVE;
+    /** Source of the move samples, or null to use Math.random() **/
+    private Random random;
 
 
     /**
@@ -55,6 +65,7 @@ public class FromStateSimulator {
     public int step(Action a) throws IllegalArgumentException {
 
         State nextState;
+        lastMoveIndex = NO_MOVE;
 
         if (!actionValidForLevel(a)) {
             throw new IllegalArgumentException("ActionType A"
@@ -138,6 +149,43 @@ public class FromStateSimulator {
         return IN_PROGRESS;
     }
 
+    /**
+     * Replay an action against the environment, using a previously sampled
+     * move index instead of sampling a new one.
+     *
+     * @param a the action to perform
+     * @param moveIndex the move index returned by getLastMoveIndex() when the
+     *                  step was first performed
+     * @return the status after the step
+     */
+    public int step(Action a, int moveIndex) throws IllegalArgumentException {
+        forcedMoveIndex = moveIndex;
+        try {
+            return step(a);
+        } finally {
+            forcedMoveIndex = NO_MOVE;
+        }
+    }
+
+    /**
+     * Draw move samples from a given random number generator, so a seeded
+     * simulator gives the same sample stream every time
+     *
+     * @param random the generator, or null to use Math.random()
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Get the index of the move distance sampled by the latest step
+     *
+     * @return the move index, or NO_MOVE if the latest step didn't sample one
+     */
+    public int getLastMoveIndex() {
+        return lastMoveIndex;
+    }
+
     /**
      * Checks if given action is valid for the current problem level
      *
@@ -204,15 +252,22 @@ public class FromStateSimulator {
      */
     private int sampleMoveDistance() {
 
+        if (forcedMoveIndex != NO_MOVE) {
+            lastMoveIndex = forcedMoveIndex;
+            return ps.convertIndexIntoMove(forcedMoveIndex);
+        }
+
         double[] moveProbs = getMoveProbs();
 
-        double p = Math.random();
+        double p = random == null ? Math.random() : random.nextDouble();
         double pSum = 0;
         int move = 0;
+        lastMoveIndex = ps.getIndexOfMove(0);
         for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
             pSum += moveProbs[k];
             if (p <= pSum) {
                 move = ps.convertIndexIntoMove(k);
+                lastMoveIndex = k;
                 break;
             }
         }
@@ -231,9 +286,27 @@ public class FromStateSimulator {
         // get parameters of current state
         Terrain terrain = ps.getEnvironmentMap()[currentState.getPos() - 1];
         int terrainIndex = ps.getTerrainIndex(terrain);
-        String car = currentState.getCarType();
-        String driver = currentState.getDriver();
-        Tire tire = currentState.getTireModel();
+
+        return getMoveProbs(terrainIndex, currentState.getCarType(),
+                currentState.getDriver(), currentState.getTireModel(),
+                currentState.getTirePressure());
+    }
+
+    /**
+     * Calculate the conditional move probabilities for an arbitrary set of
+     * parameters, independent of the current state.
+     *
+     *          P(K | C, D, Ti, Te, Pressure)
+     *
+     * @param terrainIndex index of the terrain type
+     * @param car the car type
+     * @param driver the driver
+     * @param tire the tire model
+     * @param pressure the tire pressure
+     * @return list of move probabilities
+     */
+    public double[] getMoveProbs(int terrainIndex, String car, String driver,
+                                 Tire tire, TirePressure pressure) {
 
         // calculate priors
         double priorK = 1.0 / ProblemSpec.CAR_MOVE_RANGE;
@@ -248,7 +321,8 @@ public class FromStateSimulator {
         double[] pKGivenDriver = ps.getDriverMoveProbability().get(driver);
         double[] pKGivenTire = ps.getTireModelMoveProbability().get(tire);
         double pSlipGivenTerrain = ps.getSlipProbability()[terrainIndex];
-        double[] pKGivenPressureTerrain = convertSlipProbs(pSlipGivenTerrain);
+        double[] pKGivenPressureTerrain = convertSlipProbs(pSlipGivenTerrain,
+                pressure);
 
         // use bayes rule to get probability of parameter given k
         double[] pCarGivenK = bayesRule(pKGivenCar, priorCar, priorK);
@@ -284,12 +358,12 @@ public class FromStateSimulator {
      *
      * @param slipProb probability of slipping on current terrain and 50%
      *                 tire pressure
+     * @param pressure the tire pressure
      * @return list of move probabilities given current terrain and pressure
      */
-    private double[] convertSlipProbs(double slipProb) {
+    private double[] convertSlipProbs(double slipProb, TirePressure pressure) {
 
         // Adjust slip probability based on tire pressure
-        TirePressure pressure = currentState.getTirePressure();
         if (pressure == TirePressure.SEVENTY_FIVE_PERCENT) {
             slipProb *= 2;
         } else if (pressure == TirePressure.ONE_HUNDRED_PERCENT) {
@@ -359,11 +433,25 @@ public class FromStateSimulator {
 
         // get parameters of current state
         Terrain terrain = ps.getEnvironmentMap()[currentState.getPos() - 1];
-        String car = currentState.getCarType();
-        TirePressure pressure = currentState.getTirePressure();
+        int terrainIndex = ps.getTerrainIndex(terrain);
+
+        return getFuelConsumption(terrainIndex, currentState.getCarType(),
+                currentState.getTirePressure());
+    }
+
+    /**
+     * Get the fuel consumption of moving for an arbitrary terrain, car and
+     * tire pressure, independent of the current state
+     *
+     * @param terrainIndex index of the terrain type
+     * @param car the car type
+     * @param pressure the tire pressure
+     * @return move fuel consumption for the given parameters
+     */
+    public int getFuelConsumption(int terrainIndex, String car,
+                                  TirePressure pressure) {
 
         // get fuel consumption
-        int terrainIndex = ps.getTerrainIndex(terrain);
         int carIndex = ps.getCarIndex(car);
         int fuelConsumption = ps.getFuelUsage()[terrainIndex][carIndex];
 
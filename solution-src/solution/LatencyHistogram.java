@@ -0,0 +1,157 @@
+package solution;
+
+/**
+ * Low overhead histogram of non-negative values, such as latencies in microseconds. Values are
+ * counted in log-linear buckets: below 16 every value has its own bucket, and above that each
+ * power of two is split into 16 buckets, so percentiles are accurate to within about 6%. Recording
+ * a value is constant time and allocates nothing.
+ */
+public class LatencyHistogram {
+    /**
+     * Number of linear sub-buckets in each power of two
+     */
+    private static final int SUB_BUCKETS = 16;
+
+    /**
+     * log2 of SUB_BUCKETS
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /**
+     * Number of buckets, enough for any long value
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * Number of values in each bucket
+     */
+    private long[] counts = new long[BUCKETS];
+
+    /**
+     * Number of values recorded
+     */
+    private long count;
+
+    /**
+     * Sum of the values recorded
+     */
+    private long sum;
+
+    /**
+     * Largest value recorded
+     */
+    private long max;
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     *
+     * @param value the value
+     */
+    public synchronized void record(long value) {
+        value = Math.max(0, value);
+
+        counts[bucketOf(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Get the number of values recorded
+     *
+     * @return the number of values
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the mean of the values recorded
+     *
+     * @return the mean, or 0 if nothing has been recorded
+     */
+    public synchronized double getMean() {
+        return count == 0 ? 0 : sum / (double) count;
+    }
+
+    /**
+     * Get the largest value recorded
+     *
+     * @return the largest value
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * Get an upper bound of a percentile of the values recorded
+     *
+     * @param percentile the percentile, from 0 to 100
+     *
+     * @return the highest value of the bucket holding the percentile, at most the largest value
+     * recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+
+            if (seen >= rank && seen > 0) {
+                return Math.min(max, bucketUpperBound(bucket));
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * Summarize the histogram
+     *
+     * @param unit the unit of the values, appended to each one
+     *
+     * @return the count, mean, p50, p99 and max
+     */
+    public synchronized String summary(String unit) {
+        return String.format("n=%d mean=%.1f%s p50=%d%s p99=%d%s max=%d%s", count, getMean(), unit,
+                getPercentile(50), unit, getPercentile(99), unit, max, unit);
+    }
+
+    /**
+     * Get the bucket a value is counted in
+     *
+     * @param value the value
+     *
+     * @return the bucket index
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Get the highest value counted in a bucket
+     *
+     * @param bucket the bucket index
+     *
+     * @return the highest value of the bucket
+     */
+    private static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (magnitude - SUB_BUCKET_BITS);
+
+        return ((SUB_BUCKETS + subBucket) << (magnitude - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
@@ -0,0 +1,19 @@
+package solution;
+
+import simulator.State;
+
+/**
+ * Estimates the reward of a playout which has been cut off before reaching a win or loss. The
+ * estimate should be on the same scale as the rewards given to finished playouts by MCTS.
+ */
+public interface LeafEvaluator {
+    /**
+     * Estimate the reward of continuing from a state
+     *
+     * @param state the state the playout was stopped in
+     * @param steps the number of time steps used when the playout was stopped
+     *
+     * @return the estimated reward
+     */
+    double evaluate(State state, int steps);
+}
@@ -4,25 +4,17 @@ import problem.*;
 import simulator.State;
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
 
 /**
  * Monte Carlo Tree Search
  */
 public class MCTS {
     /**
-     * Reward for a winning a simulation
+     * The reward shape, exploration constant and fuel discretization of the search
      */
-    private static final double WIN_BONUS = 1;
-
-    /**
-     * Reward multiplier for winning a simulation faster
-     */
-    private static final double SPEED_MULTIPLIER = 1;
-
-    /**
-     * Reward multiplier for a simulation travelling a number of cells
-     */
-    private static final double DISTANCE_MULTIPLIER = 1;
+    private SearchConstants constants;
 
     /**
      * The problem specification
@@ -50,9 +42,161 @@ public class MCTS {
     private ArrayList<Action> validActionsDiscretized;
 
     /**
-     * Number of discrete levels of fuel able to be added to the tank
+     * The actions the tree chooses between: the valid actions followed by any macro-actions
+     */
+    private ArrayList<Action> treeActions;
+
+    /**
+     * The primitive CONTINUE_MOVING action, which a chosen macro-action is performed as
+     */
+    private Action moveAction;
+
+    /**
+     * The valid actions grouped by action type, for choosing random playout actions
+     */
+    private ArrayList<ArrayList<Action>> actionsByType;
+
+    /**
+     * Simulator used to step down the tree and rebuild node states
+     */
+    private FromStateSimulator descentSimulator;
+
+    /**
+     * Simulator used for playouts, one per thread so leaf parallel playouts don't share one
+     */
+    private ThreadLocal<FromStateSimulator> playoutSimulators;
+
+    /**
+     * Default maximum number of actions in a random playout. 0 means playouts run until a win or
+     * loss.
+     */
+    static final int DEFAULT_PLAYOUT_HORIZON = 0;
+
+    /**
+     * Maximum number of actions in a random playout before the leaf evaluator is used to score it.
+     * 0 means playouts run until a win or loss.
+     */
+    private int playoutHorizon;
+
+    /**
+     * Evaluator used to score playouts which reach the playout horizon
+     */
+    private LeafEvaluator leafEvaluator;
+
+    /**
+     * Whether the leaf evaluator scores each new leaf in place of its random playouts
+     */
+    private boolean evaluateLeaves;
+
+    /**
+     * Cache of playout rewards shared between searches, or null if not used
+     */
+    private ValueCache valueCache;
+
+    /**
+     * Number of rebuilt states kept for nodes which don't store their state
+     */
+    private static final int RECENT_STATES_SIZE = 256;
+
+    /**
+     * Whether new nodes store only their incoming action and sampled outcome, rebuilding their
+     * state on demand, instead of a copy of their state
+     */
+    private boolean lazyStates;
+
+    /**
+     * Whether nodes represent action sequences rather than states. The states along the path are
+     * simulated again on every descent.
+     */
+    private boolean openLoop;
+
+    /**
+     * Abstraction merging the nodes of near identical states, or null to keep every state apart.
+     * Not used by lazy (except for macro-action nodes) or open loop nodes.
+     */
+    private StateAbstraction abstraction;
+
+    /**
+     * One in this many playouts emits a flight recorder event. 0 means none do.
+     */
+    private int playoutEventSampling;
+
+    /**
+     * Nanoseconds in a millisecond
+     */
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    /**
+     * Playouts check the deadline whenever the number of actions done has these bits clear
+     */
+    private static final int DEADLINE_CHECK_MASK = 15;
+
+    /**
+     * The time the current search must finish by, from System.nanoTime()
+     */
+    private long deadline;
+
+    /**
+     * Maximum number of search iterations. 0 means only the time limit applies.
      */
-    private static final int FUEL_DISCRETE_INTERVALS = 6;
+    private int iterationLimit;
+
+    /**
+     * Number of search iterations run
+     */
+    private int iterations;
+
+    /**
+     * Whether to choose the root action with sequential halving rather than plain UCT
+     */
+    private boolean sequentialHalving;
+
+    /**
+     * Number of playouts run from each new leaf
+     */
+    private int leafPlayouts = 1;
+
+    /**
+     * Steps done on reaching the leaf returned by the latest descent, which its playouts start
+     * from
+     */
+    private int leafSteps;
+
+    /**
+     * Least recently used cache of the states of nodes which don't store their state
+     */
+    private LinkedHashMap<Node, State> recentStates;
+
+    /**
+     * Rough size in bytes of a node, including its state and child list
+     */
+    static final int ESTIMATED_NODE_BYTES = 200;
+
+    /**
+     * Fraction of the node budget the tree is pruned down to when the budget is reached
+     */
+    private static final double PRUNE_TARGET = 0.75;
+
+    /**
+     * Maximum number of nodes in the tree. 0 means no limit.
+     */
+    private int nodeBudget;
+
+    /**
+     * Whether to prune the least visited subtrees when the node budget is reached, rather than
+     * stopping expansion
+     */
+    private boolean pruneAtBudget;
+
+    /**
+     * Number of nodes currently in the tree
+     */
+    private int liveNodes;
+
+    /**
+     * Number of nodes removed by pruning
+     */
+    private int prunedNodes;
 
     /**
      * Initialize the MCTS search object with all required information, and create the list of
@@ -65,13 +209,126 @@ public class MCTS {
      * take just slightly longer than this
      */
     public MCTS(ProblemSpec problemSpec, State startState, int stepsDone, int timeLimit) {
+        this(problemSpec);
+        reset(startState, stepsDone, timeLimit);
+    }
+
+    /**
+     * Initialize an MCTS search object for a problem without a start state. reset() must be
+     * called before each search. This allows one object, with its action list, simulators and
+     * settings, to be reused for every step of a problem.
+     *
+     * @param problemSpec The specification of the current problem
+     */
+    public MCTS(ProblemSpec problemSpec) {
+        this(problemSpec, SearchConstants.fromProperties());
+    }
+
+    /**
+     * Initialize an MCTS search object for a problem with given search constants. reset() must be
+     * called before each search.
+     *
+     * @param problemSpec The specification of the current problem
+     * @param constants The reward shape, exploration constant and fuel discretization to use
+     */
+    public MCTS(ProblemSpec problemSpec, SearchConstants constants) {
         this.problemSpec = problemSpec;
+        this.constants = constants;
+        this.pruneAtBudget = true;
+        this.recentStates = new LinkedHashMap<Node, State>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Node, State> eldest) {
+                return size() > RECENT_STATES_SIZE;
+            }
+        };
+        this.playoutHorizon = DEFAULT_PLAYOUT_HORIZON;
+        this.leafEvaluator = new DistanceEvaluator(problemSpec, constants);
+        this.descentSimulator = new FromStateSimulator(problemSpec);
+        this.playoutSimulators = ThreadLocal.withInitial(() -> new FromStateSimulator(problemSpec));
+
+        // Make a list of all the possible actions
+        validActionsDiscretized = makeValidActionsDiscretized(problemSpec,
+                constants.getFuelIntervals());
+        treeActions = validActionsDiscretized;
+
+        for (Action action : validActionsDiscretized) {
+            if (action.getActionType() == ActionType.MOVE) {
+                moveAction = action;
+            }
+        }
+
+        // Group them by type for picking random playout actions
+        actionsByType = new ArrayList<>();
+
+        for (ActionType actionType : problemSpec.getLevel().getAvailableActions()) {
+            ArrayList<Action> actions = new ArrayList<>();
+
+            for (Action action : validActionsDiscretized) {
+                if (action.getActionType() == actionType) {
+                    actions.add(action);
+                }
+            }
+
+            actionsByType.add(actions);
+        }
+    }
+
+    /**
+     * Discard the current tree and prepare a new search from a start state
+     *
+     * @param startState The start state of this search
+     * @param stepsDone The amount of steps done so far
+     * @param timeLimit How long is allocated to this search per action
+     */
+    public void reset(State startState, int stepsDone, int timeLimit) {
+        if (root != null) {
+            // The whole previous tree becomes garbage here
+            SearchEvents.SearchPhaseEvent event = SearchEvents.searchPhase();
+            event.phase = "discardTree";
+            event.nodes = liveNodes;
+            event.commit();
+        }
+
         this.root = new Node(startState, 0);
         this.stepsDone = stepsDone;
         this.timeLimit = timeLimit;
+        this.liveNodes = 1;
+        this.prunedNodes = 0;
+        this.iterations = 0;
+        this.recentStates.clear();
+    }
 
-        // Make a list of all the possible actions
-        makeValidActionsDiscretized();
+    /**
+     * Set the maximum number of actions in a random playout. Playouts reaching this horizon are
+     * scored by the leaf evaluator instead of running until a win or loss.
+     *
+     * @param playoutHorizon the playout horizon, or 0 for no limit
+     */
+    public void setPlayoutHorizon(int playoutHorizon) {
+        if (playoutHorizon < 0) {
+            throw new IllegalArgumentException("playoutHorizon must not be negative");
+        }
+
+        this.playoutHorizon = playoutHorizon;
+    }
+
+    /**
+     * Set the evaluator used to score playouts which reach the playout horizon
+     *
+     * @param leafEvaluator the leaf evaluator
+     */
+    public void setLeafEvaluator(LeafEvaluator leafEvaluator) {
+        this.leafEvaluator = leafEvaluator;
+    }
+
+    /**
+     * Set whether the leaf evaluator scores each new leaf directly, in place of its random
+     * playouts. For evaluators which run their own rollouts, such as BatchRolloutSimulator.
+     *
+     * @param evaluateLeaves whether to evaluate new leaves instead of playing them out
+     */
+    public void setEvaluateLeaves(boolean evaluateLeaves) {
+        this.evaluateLeaves = evaluateLeaves;
     }
 
     /**
@@ -81,16 +338,17 @@ public class MCTS {
      * @return the best Action object from the startState.
      */
     public Action getBestAction() {
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
+        deadline = startTime + timeLimit * NANOS_PER_MILLI;
 
-        // Continue iterating through the search algorithm until the time limit
-        // is reached
-        while (System.currentTimeMillis() < startTime + timeLimit) {
-            Node newNode = selectAndExpandNewNode();
-            double randomPlayout = simulateRandomPlayout(newNode);
-            backPropagate(newNode, randomPlayout);
+        if (sequentialHalving) {
+            return sequentialHalving(startTime);
         }
 
+        // Continue iterating through the search algorithm until the time limit
+        // (or iteration limit) is reached
+        searchUntil(deadline);
+
         // Technically this function will take us slightly over timeLimit, but
         // that's why a buffer is removed from timeLimit when passed to this
         // class
@@ -98,45 +356,606 @@ public class MCTS {
     }
 
     /**
-     * Decision policy for exploration, returns new leaf Node.
+     * Start the clock of a search which is run in slices with searchUntil(), rather than all at
+     * once by getBestAction(). Slices always select the root action with UCT.
+     */
+    public void beginSearch() {
+        deadline = System.nanoTime() + timeLimit * NANOS_PER_MILLI;
+    }
+
+    /**
+     * Run search iterations until a point in time, the search deadline or the iteration limit,
+     * whichever comes first
+     *
+     * @param sliceEnd the System.nanoTime() to stop at
+     *
+     * @return whether the search is finished, having reached its deadline or iteration limit
+     */
+    public boolean searchUntil(long sliceEnd) {
+        long end = Math.min(sliceEnd, deadline);
+
+        while (System.nanoTime() < end && (iterationLimit == 0 || iterations < iterationLimit)) {
+            runIteration(null);
+        }
+
+        return System.nanoTime() >= deadline ||
+                (iterationLimit != 0 && iterations >= iterationLimit);
+    }
+
+    /**
+     * Get the visits and total reward of each valid action from the root. A macro-action chosen
+     * at the root is performed as its first move, so its statistics are counted under the
+     * primitive CONTINUE_MOVING.
+     *
+     * @return the visits (index 0) and total reward (index 1) of each action, in the order of
+     * getValidActions()
+     */
+    public double[][] getRootActionStats() {
+        double[][] stats = new double[2][validActionsDiscretized.size()];
+
+        for (Action action : treeActions) {
+            int index = validActionsDiscretized.indexOf(primitiveOf(action));
+            stats[0][index] += root.getActionVisits(action);
+            stats[1][index] += root.getActionReward(action);
+        }
+
+        return stats;
+    }
+
+    /**
+     * Get the best action found by a search run in slices so far
+     *
+     * @return the best action from the root
+     */
+    public Action getSearchResult() {
+        return bestActionFromFinishedTree();
+    }
+
+    /**
+     * Get how settled the search is on its best action: the share of the root visits which went
+     * to it. UCT concentrates the visits on one action as it becomes sure of it.
+     *
+     * @return the visit share of the best action, 0 before any iterations
+     */
+    public double getResultConfidence() {
+        if (root.getVisits() == 0) {
+            return 0;
+        }
+
+        return root.getActionVisits(bestTreeAction()) / (double) root.getVisits();
+    }
+
+    /**
+     * Run a single iteration of selection, expansion, playout and backpropagation
+     *
+     * @param rootAction the action to take from the root, or null to choose it with UCT
+     */
+    private void runIteration(Action rootAction) {
+        if (pruneAtBudget && nodeBudget > 0 && liveNodes >= nodeBudget) {
+            // Prune between descents, so no subtree on the current path is collapsed
+            pruneLeastVisited();
+        }
+
+        Node newNode = selectAndExpandNewNode(rootAction);
+        State leafState = stateOf(newNode);
+        int steps = leafSteps;
+
+        if (leafPlayouts > 1) {
+            // Run the playouts from the new leaf on the fork-join pool, the tree itself is only
+            // touched from this thread. Playouts cut off by the deadline are left out.
+            DoubleSummaryStatistics rewards = IntStream.range(0, leafPlayouts).parallel()
+                    .mapToDouble(i -> simulateRandomPlayout(leafState, steps))
+                    .filter(reward -> !Double.isNaN(reward)).summaryStatistics();
+
+            if (rewards.getCount() > 0) {
+                backPropagate(newNode, rewards.getSum(), (int) rewards.getCount());
+            }
+        } else {
+            double randomPlayout = simulateRandomPlayout(leafState, steps);
+
+            if (!Double.isNaN(randomPlayout)) {
+                backPropagate(newNode, randomPlayout, 1);
+            }
+        }
+
+        iterations++;
+    }
+
+    /**
+     * Set the number of playouts run from each new leaf. More than one playout runs them in
+     * parallel on the common fork-join pool, and their mean and count are backpropagated in a
+     * single update. The leaf evaluator must be thread safe in this case.
+     *
+     * @param leafPlayouts number of playouts per new leaf
+     */
+    public void setLeafPlayouts(int leafPlayouts) {
+        if (leafPlayouts < 1) {
+            throw new IllegalArgumentException("leafPlayouts must be at least 1");
+        }
+
+        this.leafPlayouts = leafPlayouts;
+    }
+
+    /**
+     * Choose the root action with sequential halving. The budget is split evenly into
+     * ceil(log2(actions)) rounds. In each round the remaining root actions are sampled in turn,
+     * using UCT below the root, and at the end of the round the worse half is discarded.
+     *
+     * @param startTime the time the search started, from System.nanoTime()
+     *
+     * @return the last remaining root action
+     */
+    private Action sequentialHalving(long startTime) {
+        ArrayList<Action> candidates = new ArrayList<>(treeActions);
+        int rounds = Math.max(1, (int) Math.ceil(Math.log(candidates.size()) / Math.log(2)));
+
+        for (int round = 0; round < rounds && candidates.size() > 1; round++) {
+            long roundEnd = startTime + timeLimit * NANOS_PER_MILLI * (round + 1) / rounds;
+            int roundIterations = iterationLimit / rounds;
+            int done = 0;
+
+            // Sample the candidates in turn until this round's share of the budget is used
+            while (System.nanoTime() < roundEnd &&
+                    (iterationLimit == 0 || done < roundIterations)) {
+                runIteration(candidates.get(done % candidates.size()));
+                done++;
+            }
+
+            candidates.sort(Comparator.comparingDouble(this::meanActionReward).reversed());
+            candidates.subList((candidates.size() + 1) / 2, candidates.size()).clear();
+        }
+
+        return primitiveOf(candidates.get(0));
+    }
+
+    /**
+     * The mean reward of an action from the root
+     *
+     * @param action the action
+     *
+     * @return the mean reward, or negative infinity if the action hasn't been visited
+     */
+    private double meanActionReward(Action action) {
+        int visits = root.getActionVisits(action);
+        return visits == 0 ? Double.NEGATIVE_INFINITY : root.getActionReward(action) / visits;
+    }
+
+    /**
+     * Limit the number of search iterations. The search stops at whichever of the time limit and
+     * iteration limit is reached first.
+     *
+     * @param iterationLimit maximum number of iterations, or 0 for no limit
+     */
+    public void setIterationLimit(int iterationLimit) {
+        if (iterationLimit < 0) {
+            throw new IllegalArgumentException("iterationLimit must not be negative");
+        }
+
+        this.iterationLimit = iterationLimit;
+    }
+
+    /**
+     * Set whether to choose the root action with sequential halving rather than plain UCT. UCT
+     * is still used below the root.
+     *
+     * @param sequentialHalving whether to use sequential halving at the root
+     */
+    public void setSequentialHalving(boolean sequentialHalving) {
+        this.sequentialHalving = sequentialHalving;
+    }
+
+    /**
+     * Set the abstraction used to merge the nodes of near identical states. Merged nodes pool
+     * their visits and rewards, so getLiveNodes() counts abstract nodes.
+     *
+     * @param abstraction the abstraction, or null to keep every state apart
+     */
+    public void setStateAbstraction(StateAbstraction abstraction) {
+        this.abstraction = abstraction;
+    }
+
+    /**
+     * Set how often playouts emit a flight recorder event
+     *
+     * @param playoutEventSampling one in this many playouts emits an event, or 0 for none
+     */
+    public void setPlayoutEventSampling(int playoutEventSampling) {
+        if (playoutEventSampling < 0) {
+            throw new IllegalArgumentException("playoutEventSampling must not be negative");
+        }
+
+        this.playoutEventSampling = playoutEventSampling;
+    }
+
+    /**
+     * Add macro-actions to the tree, each repeating CONTINUE_MOVING up to a number of times as a
+     * single edge. They are chosen alongside the primitive actions, and a macro-action chosen at
+     * the root is performed as its first move.
+     *
+     * @param lengths the most moves of each macro-action, none to use primitive actions only
+     */
+    public void setMacroLengths(int... lengths) {
+        treeActions = validActionsDiscretized;
+
+        if (lengths.length > 0 && moveAction != null) {
+            treeActions = new ArrayList<>(validActionsDiscretized);
+
+            for (int length : lengths) {
+                treeActions.add(new MacroAction(length));
+            }
+        }
+    }
+
+    /**
+     * Get the constants the search uses
+     *
+     * @return the search constants
+     */
+    public SearchConstants getConstants() {
+        return constants;
+    }
+
+    /**
+     * Get the number of search iterations run
+     *
+     * @return the number of iterations
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Set the value cache used to fill from and short-circuit random playouts
+     *
+     * @param valueCache the value cache, or null to not use one
+     */
+    public void setValueCache(ValueCache valueCache) {
+        this.valueCache = valueCache;
+    }
+
+    /**
+     * Limit the size of the search tree. The limit is the smaller of the node budget and the
+     * number of nodes estimated to fit in the byte budget.
+     *
+     * @param nodeBudget maximum number of nodes, or 0 for no limit
+     * @param byteBudget maximum estimated tree size in bytes, or 0 for no limit
+     * @param pruneAtBudget whether to prune the least visited subtrees when the budget is
+     * reached. Otherwise expansion stops and playouts continue from the existing leaves.
+     */
+    public void setMemoryBudget(int nodeBudget, long byteBudget, boolean pruneAtBudget) {
+        if (nodeBudget < 0 || byteBudget < 0) {
+            throw new IllegalArgumentException("budgets must not be negative");
+        }
+
+        this.nodeBudget = nodeBudget;
+        this.pruneAtBudget = pruneAtBudget;
+
+        if (byteBudget > 0) {
+            int byteNodes = (int) Math.min(Integer.MAX_VALUE, byteBudget / ESTIMATED_NODE_BYTES);
+            this.nodeBudget = nodeBudget == 0 ? byteNodes : Math.min(nodeBudget, byteNodes);
+        }
+    }
+
+    /**
+     * Set whether new nodes store only their incoming action and sampled outcome instead of a
+     * copy of their state. This uses much less memory per node, at the cost of replaying
+     * transitions when the state of a node is needed outside the descent.
+     *
+     * @param lazyStates whether to rebuild node states on demand
+     */
+    public void setLazyStates(boolean lazyStates) {
+        this.lazyStates = lazyStates;
+    }
+
+    /**
+     * Set whether to use open loop search. In open loop search each node represents the sequence
+     * of actions leading to it, and the states along the path are simulated again on every
+     * descent, so all the outcomes of an action share one child node.
+     *
+     * @param openLoop whether to use open loop search
+     */
+    public void setOpenLoop(boolean openLoop) {
+        this.openLoop = openLoop;
+    }
+
+    /**
+     * Get the number of nodes currently in the tree
+     *
+     * @return the number of live nodes
+     */
+    public int getLiveNodes() {
+        return liveNodes;
+    }
+
+    /**
+     * Get the number of nodes removed by pruning
+     *
+     * @return the number of pruned nodes
+     */
+    public int getPrunedNodes() {
+        return prunedNodes;
+    }
+
+    /**
+     * Get the root node of the search tree
+     *
+     * @return the root node
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Get the list of actions considered at each node
+     *
+     * @return the discretized valid actions
+     */
+    public ArrayList<Action> getValidActions() {
+        return validActionsDiscretized;
+    }
+
+    /**
+     * Decision policy for exploration, returns new leaf Node. The steps done on reaching it are
+     * left in leafSteps.
+     *
+     * @param rootAction the action to take from the root, or null to choose it with UCT
      *
      * @return the leaf node added to the tree
      */
-    private Node selectAndExpandNewNode() {
+    private Node selectAndExpandNewNode(Action rootAction) {
         // Start at the root
         Node node = root;
+        State state = root.getState();
+        int steps = stepsDone;
 
         // Iterate down the tree until reaching a goal state
-        while (node.getState().getPos() < problemSpec.getN()) {
+        while (state.getPos() < problemSpec.getN()) {
             // Get the best action from the current node using UCT
-            Action action = selectBestAction(node);
+            Action action = node == root && rootAction != null ? rootAction :
+                    selectBestAction(node);
+
+            // Simulate a single action. Open loop nodes don't have a fixed step count, and merged
+            // abstract nodes keep the count of whichever state created them, so for both the
+            // count is carried down with the state instead.
+            int nodeSteps = openLoop || abstraction != null ? steps :
+                    stepsDone + node.getStepsFromRoot();
+            FromStateSimulator FSS = descentSimulator;
+            FSS.setStartState(state, nodeSteps);
+            boolean macro = action instanceof MacroAction;
+
+            if (macro) {
+                stepMacro(FSS, (MacroAction) action);
+            } else {
+                FSS.step(action);
+            }
 
-            // Simulate a single action
-            FromStateSimulator FSS = new FromStateSimulator(problemSpec);
-            FSS.setStartState(node.getState(), stepsDone + node.getStepsFromRoot());
-            FSS.step(action);
             State newState = FSS.getCurrentState();
+            steps = FSS.getSteps();
 
-            // Get the node representing the outcome of the transition
-            Node child = node.childWithStateAction(newState, action);
+            // Get the node representing the outcome of the transition. Macro-actions sample
+            // several outcomes, so their nodes always store their state instead.
+            Node child;
+            long abstractKey = 0;
 
-            // If this outcome node has not been added to the tree, add it
+            if (openLoop) {
+                child = node.childWithAction(action);
+            } else if (lazyStates && !macro) {
+                child = node.childWithActionOutcome(action, FSS.getLastMoveIndex());
+            } else if (abstraction != null) {
+                abstractKey = abstraction.key(newState, steps);
+                child = node.childWithAbstractStateAction(abstractKey, action);
+            } else {
+                child = node.childWithStateAction(newState, action);
+            }
+
+            // If this outcome node has not been added to the tree, add it. When pruning, the tree
+            // was already pruned back before the descent.
             if (child == null) {
-                Node newNode = new Node(newState, FSS.getSteps());
+                if (nodeBudget > 0 && liveNodes >= nodeBudget && !pruneAtBudget) {
+                    // Keep refining the existing leaf instead of growing the tree
+                    rememberState(node, state);
+                    leafSteps = nodeSteps;
+                    return node;
+                }
+
+                liveNodes++;
+                Node newNode;
+
+                if (openLoop) {
+                    newNode = new Node(steps - stepsDone, FromStateSimulator.NO_MOVE);
+                } else if (lazyStates && !macro) {
+                    newNode = new Node(steps - stepsDone, FSS.getLastMoveIndex());
+                } else {
+                    newNode = new Node(newState, steps - stepsDone);
+
+                    if (abstraction != null) {
+                        newNode.setAbstractKey(abstractKey);
+                    }
+                }
+
                 newNode.setParentNodeAndAction(node, action);
                 node.addChildNode(newNode);
+                rememberState(newNode, newState);
 
                 // Return this new node
+                leafSteps = steps;
                 return newNode;
             }
 
             // Now repeat the process using this child node
             node = child;
+            state = newState;
         }
 
+        rememberState(node, state);
+        leafSteps = steps;
         return node;
     }
 
+    /**
+     * Perform a macro-action: move until its length is reached, the terrain type changes, there
+     * isn't the fuel for another move, the car slips or breaks down or the episode ends
+     *
+     * @param FSS the simulator, set to the state the macro-action starts in
+     * @param macro the macro-action
+     */
+    private void stepMacro(FromStateSimulator FSS, MacroAction macro) {
+        Terrain[] map = problemSpec.getEnvironmentMap();
+        Terrain terrain = map[FSS.getCurrentState().getPos() - 1];
+
+        for (int i = 0; i < macro.getLength(); i++) {
+            State state = FSS.getCurrentState();
+
+            if (i > 0) {
+                int terrainIndex = problemSpec.getTerrainIndex(map[state.getPos() - 1]);
+                int fuelRequired = FSS.getFuelConsumption(terrainIndex, state.getCarType(),
+                        state.getTirePressure());
+
+                if (map[state.getPos() - 1] != terrain || fuelRequired > state.getFuel()) {
+                    return;
+                }
+            }
+
+            int stepsBefore = FSS.getSteps();
+
+            if (FSS.step(moveAction) != FromStateSimulator.IN_PROGRESS ||
+                    FSS.getSteps() - stepsBefore > 1) {
+                // Won, lost, slipped or broke down
+                return;
+            }
+        }
+    }
+
+    /**
+     * Keep the state of a node which doesn't store its state in the recent state cache, so the
+     * playout from it doesn't need to replay it. For open loop nodes this is the state sampled on
+     * the latest descent.
+     *
+     * @param node the node
+     * @param state the state of the node
+     */
+    private void rememberState(Node node, State state) {
+        if (node.getState() == null) {
+            recentStates.put(node, state);
+        }
+    }
+
+    /**
+     * Get the state of a node. Nodes which don't store their state have it rebuilt by replaying
+     * the vertices from the nearest ancestor with a known state. Open loop nodes have no recorded
+     * outcomes, so this samples a fresh state for them.
+     *
+     * @param node the node
+     *
+     * @return the state of the node
+     */
+    State stateOf(Node node) {
+        if (node.getState() != null) {
+            return node.getState();
+        }
+
+        State state = recentStates.get(node);
+
+        if (state != null) {
+            return state;
+        }
+
+        // Walk up to the nearest ancestor whose state is known
+        ArrayList<Node> path = new ArrayList<>();
+        Node ancestor = node;
+
+        while (state == null) {
+            path.add(ancestor);
+            ancestor = ancestor.getParentNode();
+            state = ancestor.getState() != null ? ancestor.getState() :
+                    recentStates.get(ancestor);
+        }
+
+        // Replay the sampled outcomes back down to the node
+        FromStateSimulator FSS = descentSimulator;
+
+        for (int i = path.size() - 1; i >= 0; i--) {
+            Node child = path.get(i);
+            FSS.setStartState(state, stepsDone + child.getParentNode().getStepsFromRoot());
+            FSS.step(child.getParentAction(), child.getOutcome());
+            state = FSS.getCurrentState();
+        }
+
+        recentStates.put(node, state);
+        return state;
+    }
+
+    /**
+     * Collapse the subtrees of the least visited internal nodes until the tree is back down to
+     * PRUNE_TARGET of the node budget. Collapsed nodes keep their statistics, so the UCT values
+     * of their parents are unchanged. Must only be called between descents.
+     */
+    private void pruneLeastVisited() {
+        SearchEvents.SearchPhaseEvent event = SearchEvents.searchPhase();
+        event.begin();
+        int liveBefore = liveNodes;
+
+        ArrayList<Node> internalNodes = new ArrayList<>();
+        ArrayList<Node> stack = new ArrayList<>(root.getChildNodes());
+
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+
+            if (!node.getChildNodes().isEmpty()) {
+                internalNodes.add(node);
+                stack.addAll(node.getChildNodes());
+            }
+        }
+
+        // A node never has more visits than its parent. Reversing the pre-order list before the
+        // stable sort puts descendants ahead of ancestors with equal visits, so a subtree is never
+        // collapsed after one of its ancestors has already removed it.
+        Collections.reverse(internalNodes);
+        internalNodes.sort(Comparator.comparingInt(Node::getVisits));
+        int target = (int) (nodeBudget * PRUNE_TARGET);
+
+        for (Node node : internalNodes) {
+            if (liveNodes <= target) {
+                break;
+            }
+
+            int removed = node.pruneChildNodes();
+            liveNodes -= removed;
+            prunedNodes += removed;
+        }
+
+        // Count what is left rather than trusting the running count, and drop the rebuilt states
+        // of removed nodes so the detached subtrees can be collected
+        liveNodes = countNodes(root);
+        recentStates.clear();
+
+        event.phase = "prune";
+        event.nodes = liveBefore - liveNodes;
+        event.commit();
+    }
+
+    /**
+     * Count the nodes of a subtree
+     *
+     * @param subtreeRoot the root of the subtree
+     *
+     * @return the number of nodes, the root included
+     */
+    private static int countNodes(Node subtreeRoot) {
+        int count = 0;
+        ArrayList<Node> stack = new ArrayList<>();
+        stack.add(subtreeRoot);
+
+        // Iterate rather than recurse, the tree can be deep
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            count++;
+            stack.addAll(node.getChildNodes());
+        }
+
+        return count;
+    }
+
     /**
      * Select the best action to perform on a node using the UCT (Upper confidence bound for trees)
      * method.
@@ -146,7 +965,7 @@ public class MCTS {
      * @return the best Action object
      */
     private Action selectBestAction(Node node) {
-        return Collections.max(validActionsDiscretized, Comparator.comparing(c -> UCTValue(c,
+        return Collections.max(treeActions, Comparator.comparing(c -> UCTValue(c,
                 node)));
     }
 
@@ -161,109 +980,136 @@ public class MCTS {
     private double UCTValue(Action action, Node parentNode) {
         double actionVisits = (double) parentNode.getActionVisits(action);
 
-        return parentNode.getActionReward(action) / actionVisits +
-                Math.sqrt(2.0 * Math.log(parentNode.getVisits()) / actionVisits);
+        return parentNode.getActionReward(action) / actionVisits + constants.getExploration() *
+                Math.sqrt(Math.log(parentNode.getVisits()) / actionVisits);
     }
 
     /**
-     * Simulates a random playout from leaf Node node. Returns 1 if the playout is a win, otherwise
-     * 0.
+     * Simulates a random playout from the state of a leaf node. Returns the reward of the playout,
+     * or the leaf evaluator's estimate if the playout reaches the playout horizon first or leaves
+     * are evaluated directly. Safe to call from several threads at once.
+     *
+     * The deadline is checked every few actions, and a playout still running after it is
+     * abandoned.
      *
-     * @param node the node to simulate the playout from
+     * @param leafState the state to simulate the playout from
+     * @param leafSteps the steps done on reaching the leaf
+     *
+     * @return the reward, or NaN if the playout was abandoned at the deadline
      */
-    private double simulateRandomPlayout(Node node) {
-        State playoutState = node.getState().copyState();
-        FromStateSimulator FSS = new FromStateSimulator(problemSpec);
-        FSS.setStartState(playoutState, stepsDone);
+    private double simulateRandomPlayout(State leafState, int leafSteps) {
+        State playoutState = leafState.copyState();
+        FromStateSimulator FSS = playoutSimulators.get();
+        FSS.setStartState(playoutState, leafSteps);
+
+        // Only a sample of playouts is recorded, a flight recorder event for every one would cost
+        // more than the playout
+        SearchEvents.PlayoutEvent event = null;
+
+        if (playoutEventSampling > 0 &&
+                ThreadLocalRandom.current().nextInt(playoutEventSampling) == 0) {
+            event = SearchEvents.playout();
+            event.begin();
+        }
+
+        if (evaluateLeaves && leafState.getPos() < problemSpec.getN()) {
+            return endPlayout(event, 0, "evaluated", leafEvaluator.evaluate(leafState, leafSteps));
+        }
 
         int status = FromStateSimulator.IN_PROGRESS;
+        int actionsDone = 0;
+
+        // Keys of the states passed through, to fill the value cache with
+        long[] keys = valueCache == null ? null : new long[16];
 
-        // Simulate until a win or loss
+        // Simulate until a win or loss, or until the horizon is reached
         while (status == FromStateSimulator.IN_PROGRESS) {
+            if (valueCache != null) {
+                long key = valueCache.key(FSS.getCurrentState(), FSS.getSteps());
+                double cachedValue = valueCache.lookup(key);
+
+                if (!Double.isNaN(cachedValue)) {
+                    return endPlayout(event, actionsDone, "cached", cachedValue);
+                }
+
+                if (actionsDone == keys.length) {
+                    keys = Arrays.copyOf(keys, keys.length * 2);
+                }
+
+                keys[actionsDone] = key;
+            }
+
+            if (playoutHorizon > 0 && actionsDone >= playoutHorizon) {
+                return endPlayout(event, actionsDone, "horizon",
+                        leafEvaluator.evaluate(FSS.getCurrentState(), FSS.getSteps()));
+            }
+
+            if ((actionsDone & DEADLINE_CHECK_MASK) == DEADLINE_CHECK_MASK &&
+                    System.nanoTime() > deadline) {
+                return endPlayout(event, actionsDone, "abandoned", Double.NaN);
+            }
+
             Action action = selectRandomAction();
             status = FSS.step(action);
+            actionsDone++;
         }
 
-        if (status == FromStateSimulator.WIN) {
-            return WIN_BONUS + SPEED_MULTIPLIER * (problemSpec.getMaxT() - FSS.getSteps()) /
-                    (double) problemSpec.getMaxT();
-        } else {
-            // The simulation was a loss
-            return DISTANCE_MULTIPLIER * FSS.getCurrentState().getPos() /
-                    (double) problemSpec.getN();
+        double reward = playoutReward(status, FSS);
+
+        if (valueCache != null) {
+            valueCache.add(keys, actionsDone, reward);
         }
+
+        return endPlayout(event, actionsDone,
+                status == FromStateSimulator.WIN ? "win" : "loss", reward);
     }
 
     /**
-     * Selects a random action for the random playout
+     * Commit the flight recorder event of a playout, if it is being recorded
      *
-     * @return the random action
+     * @param event the playout's event, or null if it isn't sampled
+     * @param length the number of actions simulated
+     * @param outcome how the playout ended
+     * @param reward the playout's reward
+     *
+     * @return the reward
      */
-    private Action selectRandomAction() {
-        int fuel;
-        String car, driver;
-        Tire tire;
-        TirePressure pressure;
-
-        // Possible tire pressures
-        List<TirePressure> tirePressures = Arrays.asList(
-                TirePressure.FIFTY_PERCENT,
-                TirePressure.SEVENTY_FIVE_PERCENT,
-                TirePressure.ONE_HUNDRED_PERCENT
-        );
-
-        // Possible fuel levels (note that this is an arbitrary discretization)
-        List<Integer> fuelLevels = new ArrayList<>();
-        int fuelInterval = ProblemSpec.FUEL_MAX / FUEL_DISCRETE_INTERVALS;
-
-        for (int i = 0; i < FUEL_DISCRETE_INTERVALS; i++) {
-            fuelLevels.add(fuelInterval * i);
+    private static double endPlayout(SearchEvents.PlayoutEvent event, int length, String outcome,
+                                     double reward) {
+        if (event != null) {
+            event.length = length;
+            event.outcome = outcome;
+            event.commit();
         }
 
-        List<ActionType> validActionTypes = problemSpec.getLevel().getAvailableActions();
-        ActionType actionType = getRandomElement(validActionTypes);
-        Action action;
+        return reward;
+    }
 
-        // Pick a random action from A1-A8 and then randomize the parameters
-        switch (actionType.getActionNo()) {
-            case 1:
-                action = new Action(actionType);
-                break;
-            case 2:
-                car = getRandomElement(problemSpec.getCarOrder());
-                action = new Action(actionType, car);
-                break;
-            case 3:
-                driver = getRandomElement(problemSpec.getDriverOrder());
-                action = new Action(actionType, driver);
-                break;
-            case 4:
-                tire = getRandomElement(problemSpec.getTireOrder());
-                action = new Action(actionType, tire);
-                break;
-            case 5:
-                fuel = getRandomElement(fuelLevels);
-                action = new Action(actionType, fuel);
-                break;
-            case 6:
-                pressure = getRandomElement(tirePressures);
-                action = new Action(actionType, pressure);
-                break;
-            case 7:
-                car = getRandomElement(problemSpec.getCarOrder());
-                driver = getRandomElement(problemSpec.getDriverOrder());
-                action = new Action(actionType, car, driver);
-                break;
-            default:
-                // A8
-                tire = getRandomElement(problemSpec.getTireOrder());
-                fuel = getRandomElement(fuelLevels);
-                pressure = getRandomElement(tirePressures);
-                action = new Action(actionType, tire, fuel, pressure);
+    /**
+     * The reward of a finished playout
+     *
+     * @param status the final status of the playout, either WIN or LOSS
+     * @param FSS the simulator the playout was run in
+     *
+     * @return the reward
+     */
+    private double playoutReward(int status, FromStateSimulator FSS) {
+        if (status == FromStateSimulator.WIN) {
+            return constants.winReward(FSS.getSteps(), problemSpec.getMaxT());
+        } else {
+            // The simulation was a loss
+            return constants.lossReward(FSS.getCurrentState().getPos(), problemSpec.getN());
         }
+    }
 
-        return action;
-
+    /**
+     * Selects a random action for the random playout. A random action type is picked, then random
+     * parameters for it, using the prebuilt discretized actions so nothing is allocated.
+     *
+     * @return the random action
+     */
+    private Action selectRandomAction() {
+        return getRandomElement(getRandomElement(actionsByType));
     }
 
     /**
@@ -283,11 +1129,12 @@ public class MCTS {
      * node.
      *
      * @param node the node to begin backpropagation from
-     * @param playoutResult the reward of the playout
+     * @param rewardSum the total reward of the playouts
+     * @param playouts the number of playouts
      */
-    private void backPropagate(Node node, double playoutResult) {
+    private void backPropagate(Node node, double rewardSum, int playouts) {
         while (node != null) {
-            node.addVisit(playoutResult);
+            node.addVisits(playouts, rewardSum);
             node = node.getParentNode();
         }
     }
@@ -298,15 +1145,96 @@ public class MCTS {
      * @return the best action from the root based on it's win / simulation ratio
      */
     private Action bestActionFromFinishedTree() {
-        return Collections.max(validActionsDiscretized, Comparator.comparing(
-                c -> root.getActionReward(c) / (double) root.getActionVisits(c)));
+        return primitiveOf(bestTreeAction());
+    }
+
+    /**
+     * Get the action of the tree (possibly a macro-action) with the best mean reward from the root
+     *
+     * @return the best tree action
+     */
+    private Action bestTreeAction() {
+        return Collections.max(treeActions, Comparator.comparing(this::meanActionReward));
+    }
+
+    /**
+     * Get the action to give the simulator for an action of the tree
+     *
+     * @param action the tree action
+     *
+     * @return the primitive CONTINUE_MOVING for a macro-action, otherwise the action itself
+     */
+    private Action primitiveOf(Action action) {
+        return action instanceof MacroAction ? moveAction : action;
+    }
+
+    /**
+     * Find an action in a list of actions by its text, so actions built separately from the same
+     * problem can be matched
+     *
+     * @param actions the list of actions
+     * @param action the action to find
+     *
+     * @return the index of the action, or -1 if it isn't in the list
+     */
+    static int indexOfAction(List<Action> actions, Action action) {
+        for (int i = 0; i < actions.size(); i++) {
+            if (actions.get(i).getText().equals(action.getText())) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the texts of a list of actions, in order. Actions are stored and
+     * exchanged as indices into the action list, which depends on the fuel discretization, so
+     * this checks two lists index the same actions.
+     *
+     * @param actions the list of actions
+     *
+     * @return the signature
+     */
+    static long actionsSignature(List<Action> actions) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (Action action : actions) {
+            String text = action.getText() + "|";
+
+            for (int i = 0; i < text.length(); i++) {
+                hash ^= text.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+
+        return hash;
     }
 
     /**
      * Creates the list of valid actions (discretized) from the problem spec.
+     *
+     * @param problemSpec the problem specification
+     *
+     * @return the list of valid actions
      */
-    private void makeValidActionsDiscretized() {
-        validActionsDiscretized = new ArrayList<>();
+    static ArrayList<Action> makeValidActionsDiscretized(ProblemSpec problemSpec) {
+        return makeValidActionsDiscretized(problemSpec,
+                SearchConstants.fromProperties().getFuelIntervals());
+    }
+
+    /**
+     * Creates the list of valid actions (discretized) from the problem spec, with a given number
+     * of fuel amounts.
+     *
+     * @param problemSpec the problem specification
+     * @param fuelIntervals the number of fuel amounts
+     *
+     * @return the list of valid actions
+     */
+    static ArrayList<Action> makeValidActionsDiscretized(ProblemSpec problemSpec,
+                                                         int fuelIntervals) {
+        ArrayList<Action> validActionsDiscretized = new ArrayList<>();
 
         List<ActionType> actionTypes = problemSpec.getLevel().getAvailableActions();
 
@@ -319,9 +1247,9 @@ public class MCTS {
 
         // Valid fuel levels (note that this is an arbitrary discretization)
         List<Integer> fuelLevels = new ArrayList<>();
-        int fuelInterval = ProblemSpec.FUEL_MAX / FUEL_DISCRETE_INTERVALS;
+        int fuelInterval = ProblemSpec.FUEL_MAX / fuelIntervals;
 
-        for (int i = 0; i < FUEL_DISCRETE_INTERVALS; i++) {
+        for (int i = 0; i < fuelIntervals; i++) {
             fuelLevels.add(fuelInterval * i);
         }
 
@@ -388,6 +1316,8 @@ public class MCTS {
                     break;
             }
         }
+
+        return validActionsDiscretized;
     }
 
     /**
@@ -403,7 +1333,6 @@ public class MCTS {
             throw new IllegalArgumentException("max must be greater than min");
         }
 
-        Random r = new Random();
-        return r.nextInt(max - min) + min;
+        return ThreadLocalRandom.current().nextInt(min, max);
     }
 }
@@ -0,0 +1,54 @@
+package solution;
+
+import problem.Action;
+import problem.ActionType;
+
+/**
+ * A macro-action of the search tree: CONTINUE_MOVING repeated up to a number of times, stopping
+ * early when the terrain type changes, the fuel runs short, the car slips or breaks down or the
+ * episode ends. A whole macro-action is one edge of the tree, so a few of them cover a long
+ * stretch of track which would otherwise take one tree level per move.
+ *
+ * Macro-actions only exist inside the search. The simulator is only ever given the primitive
+ * CONTINUE_MOVING they start with.
+ */
+public class MacroAction extends Action {
+    /**
+     * The most moves the macro-action makes
+     */
+    private int length;
+
+    /**
+     * Constructor
+     *
+     * @param length the most moves the macro-action makes
+     */
+    public MacroAction(int length) {
+        super(ActionType.MOVE);
+
+        if (length < 2) {
+            throw new IllegalArgumentException("A macro-action must make at least 2 moves");
+        }
+
+        this.length = length;
+    }
+
+    /**
+     * Get the most moves the macro-action makes
+     *
+     * @return the length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * The text identifying the macro-action in the tree, distinct from the primitive A1
+     *
+     * @return the text
+     */
+    @Override
+    public String getText() {
+        return "A1x" + length;
+    }
+}
@@ -6,6 +6,8 @@ import simulator.Simulator;
 import simulator.State;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Program to run an MCTS planner
@@ -21,15 +23,267 @@ public class Main {
      */
     private static final int STEP_TIME_BUFFER = 100;
 
+    /**
+     * System property holding a different step time buffer (millis), for tuning it against the
+     * decision overruns reported by the planner
+     */
+    static final String STEP_TIME_BUFFER_PROPERTY = "mcts.stepTimeBuffer";
+
+    /**
+     * System property holding the maximum number of actions in a random playout
+     */
+    static final String PLAYOUT_HORIZON_PROPERTY = "mcts.playoutHorizon";
+
+    /**
+     * System property naming the leaf evaluator used for cut off playouts, "distance", "steps" or
+     * "batch". Without a playout horizon, "batch" scores each new leaf in place of its playout.
+     */
+    static final String LEAF_EVALUATOR_PROPERTY = "mcts.leafEvaluator";
+
+    /**
+     * System property holding the number of rollouts run by the "batch" leaf evaluator
+     */
+    static final String BATCH_SIZE_PROPERTY = "mcts.batchSize";
+
+    /**
+     * System property which can be set to false to always use MCTS, even on small problems
+     */
+    static final String EXACT_SOLVER_PROPERTY = "mcts.exactSolver";
+
+    /**
+     * System property holding the directory of the persistent policy cache. No cache is used if
+     * it is not set.
+     */
+    static final String POLICY_CACHE_PROPERTY = "mcts.policyCache";
+
+    /**
+     * System property holding the minimum number of root visits a cached decision needs
+     */
+    static final String POLICY_CACHE_MIN_VISITS_PROPERTY = "mcts.policyCacheMinVisits";
+
+    /**
+     * Default minimum number of root visits a cached decision needs
+     */
+    private static final int DEFAULT_POLICY_CACHE_MIN_VISITS = 1000;
+
+    /**
+     * System property holding the capacity of the playout value cache shared by the searches of
+     * an episode. No value cache is used if it is not set.
+     */
+    static final String VALUE_CACHE_PROPERTY = "mcts.valueCache";
+
+    /**
+     * System property holding the maximum number of nodes in each search tree
+     */
+    static final String NODE_BUDGET_PROPERTY = "mcts.nodeBudget";
+
+    /**
+     * System property holding the maximum estimated size in bytes of each search tree
+     */
+    static final String BYTE_BUDGET_PROPERTY = "mcts.byteBudget";
+
+    /**
+     * System property choosing what happens when the tree budget is reached, "prune" to collapse
+     * the least visited subtrees or "freeze" to stop expanding
+     */
+    static final String BUDGET_MODE_PROPERTY = "mcts.budgetMode";
+
+    /**
+     * System property which can be set to true to have tree nodes rebuild their states on demand
+     * rather than storing them
+     */
+    static final String LAZY_STATES_PROPERTY = "mcts.lazyStates";
+
+    /**
+     * System property which can be set to true to use open loop search, where nodes represent
+     * action sequences rather than states
+     */
+    static final String OPEN_LOOP_PROPERTY = "mcts.openLoop";
+
+    /**
+     * System property holding the maximum number of iterations of each search
+     */
+    static final String ITERATION_LIMIT_PROPERTY = "mcts.iterations";
+
+    /**
+     * System property choosing how the root action is selected, "uct" or "halving"
+     */
+    static final String ROOT_SELECTION_PROPERTY = "mcts.rootSelection";
+
+    /**
+     * System property holding the number of playouts run in parallel from each new leaf
+     */
+    static final String LEAF_PLAYOUTS_PROPERTY = "mcts.leafPlayouts";
+
+    /**
+     * System property holding the addresses (host:port, comma separated) of running search
+     * workers to spread each decision over
+     */
+    static final String WORKERS_PROPERTY = "mcts.workers";
+
+    /**
+     * System property holding the number of search worker processes to start on this machine
+     */
+    static final String LOCAL_WORKERS_PROPERTY = "mcts.localWorkers";
+
+    /**
+     * System property holding the port of the first local search worker
+     */
+    static final String WORKER_PORT_PROPERTY = "mcts.workerPort";
+
+    /**
+     * Default port of the first local search worker
+     */
+    private static final int DEFAULT_WORKER_PORT = 5100;
+
+    /**
+     * First command line argument which runs the program as a search worker. The second argument
+     * is the port to listen on.
+     */
+    static final String WORKER_ARGUMENT = "--worker";
+
+    /**
+     * First command line argument which runs the program as a planner daemon. The second
+     * argument is the port to listen on.
+     */
+    static final String DAEMON_ARGUMENT = "--daemon";
+
+    /**
+     * System property holding the address (host:port) of a planner daemon to forward decisions
+     * to instead of planning in this process
+     */
+    static final String DAEMON_PROPERTY = "mcts.daemon";
+
+    /**
+     * System property holding the longest time (millis) to spend warming up the search before the
+     * first decision. No warm up is done if it is not set.
+     */
+    static final String WARM_UP_PROPERTY = "mcts.warmUp";
+
+    /**
+     * System property holding how often playouts emit a flight recorder event: one in this many
+     * playouts does. Playouts emit no events if it is not set.
+     */
+    static final String PLAYOUT_EVENT_SAMPLING_PROPERTY = "mcts.jfrPlayoutSampling";
+
+    /**
+     * System property holding the file to export search tree snapshots to, as JSON lines. No
+     * trees are exported if it is not set.
+     */
+    static final String EXPORT_TREE_PROPERTY = "mcts.exportTree";
+
+    /**
+     * System property holding the number of most visited children exported under each node
+     */
+    static final String EXPORT_TOP_K_PROPERTY = "mcts.exportTopK";
+
+    /**
+     * System property holding the deepest tree level exported
+     */
+    static final String EXPORT_DEPTH_PROPERTY = "mcts.exportDepth";
+
+    /**
+     * System property holding the fewest visits an exported node needs
+     */
+    static final String EXPORT_MIN_VISITS_PROPERTY = "mcts.exportMinVisits";
+
+    /**
+     * Default number of most visited children exported under each node
+     */
+    private static final int DEFAULT_EXPORT_TOP_K = 3;
+
+    /**
+     * Default deepest tree level exported
+     */
+    private static final int DEFAULT_EXPORT_DEPTH = 4;
+
+    /**
+     * Default fewest visits an exported node needs
+     */
+    private static final int DEFAULT_EXPORT_MIN_VISITS = 50;
+
+    /**
+     * System property holding the file to record an episode trace to. No trace is recorded if it
+     * is not set.
+     */
+    static final String TRACE_PROPERTY = "mcts.trace";
+
+    /**
+     * System property holding the lengths of the CONTINUE_MOVING macro-actions added to the tree,
+     * comma separated. The tree only uses primitive actions if it is not set.
+     */
+    static final String MACRO_LENGTHS_PROPERTY = "mcts.macroLengths";
+
+    /**
+     * System property holding the reward of a playout reaching the goal
+     */
+    static final String WIN_BONUS_PROPERTY = "mcts.winBonus";
+
+    /**
+     * System property holding the multiplier of the reward for the time steps left on reaching
+     * the goal
+     */
+    static final String SPEED_MULTIPLIER_PROPERTY = "mcts.speedMultiplier";
+
+    /**
+     * System property holding the multiplier of the reward for the distance covered by a failed
+     * playout
+     */
+    static final String DISTANCE_MULTIPLIER_PROPERTY = "mcts.distanceMultiplier";
+
+    /**
+     * System property holding the UCT exploration constant
+     */
+    static final String EXPLORATION_PROPERTY = "mcts.exploration";
+
+    /**
+     * System property holding the number of fuel amounts the fuel actions are discretized into
+     */
+    static final String FUEL_INTERVALS_PROPERTY = "mcts.fuelIntervals";
+
+    /**
+     * System property holding a properties file of search constants, such as one written by
+     * ConstantsTuner. Constants also given as system properties take precedence.
+     */
+    static final String CONSTANTS_FILE_PROPERTY = "mcts.constants";
+
+    /**
+     * System property holding the units of fuel per bucket of the state abstraction
+     */
+    static final String FUEL_BUCKET_PROPERTY = "mcts.fuelBucket";
+
+    /**
+     * System property holding the steps per bucket of the state abstraction. Steps are ignored if
+     * it is not set.
+     */
+    static final String STEPS_BUCKET_PROPERTY = "mcts.stepsBucket";
+
+    /**
+     * System property which makes the state abstraction ignore the fuel once there is enough to
+     * reach the goal
+     */
+    static final String IGNORE_SPARE_FUEL_PROPERTY = "mcts.ignoreSpareFuel";
+
     /**
      * Main function, takes an input and output file and solves the problem using an MCTS planner
      *
      * @param args the command line arguments. args[0] is the input file, args[1] is the output
-     * file, and args[2] is optionally a different time step limit
+     * file, and args[2] is optionally a different time step limit. Alternatively "--worker port"
+     * runs a search worker for root parallel search, and "--daemon port" runs a planner daemon.
      *
      * @throws IOException if there is an exception generated handling the files
      */
     public static void main(String[] args) throws IOException {
+        if (args[0].equals(WORKER_ARGUMENT)) {
+            new SearchWorker().serve(Integer.parseInt(args[1]));
+            return;
+        }
+
+        if (args[0].equals(DAEMON_ARGUMENT)) {
+            new PlannerDaemon().serve(Integer.parseInt(args[1]));
+            return;
+        }
+
         String inputFile = args[0];
         String outputFile = args[1];
 
@@ -46,7 +300,12 @@ public class Main {
 
         // Solve the problem
         Simulator sim = new Simulator(ps, outputFile);
-        boolean solved = simulateProblem(ps, sim, timeLimit);
+        boolean solved;
+
+        try (Planner planner = openPlanner(ps, inputFile);
+             EpisodeTrace trace = openEpisodeTrace(ps, inputFile)) {
+            solved = simulateProblem(sim, planner, timeLimit, trace);
+        }
 
         if (solved) {
             System.out.println("Simulation successful.");
@@ -66,17 +325,63 @@ public class Main {
      * @return whether the simulation was successful or not
      */
     public static boolean simulateProblem(ProblemSpec ps, Simulator sim, int timeLimit) {
+        try (PlannerSession planner = new PlannerSession(ps)) {
+            return simulateProblem(sim, planner, timeLimit);
+        }
+    }
+
+    /**
+     * Simulate and solve the problem using a planner
+     *
+     * @param sim the simulator
+     * @param planner the planner for the simulator's problem
+     * @param timeLimit the time limit per step of the planner
+     *
+     * @return whether the simulation was successful or not
+     */
+    public static boolean simulateProblem(Simulator sim, Planner planner, int timeLimit) {
+        return simulateProblem(sim, planner, timeLimit, null);
+    }
+
+    /**
+     * Simulate and solve the problem using a planner, recording every step to a trace
+     *
+     * @param sim the simulator
+     * @param planner the planner for the simulator's problem
+     * @param timeLimit the time limit per step of the planner
+     * @param trace the trace to record the episode to, or null to not record it
+     *
+     * @return whether the simulation was successful or not
+     */
+    public static boolean simulateProblem(Simulator sim, Planner planner, int timeLimit,
+                                          EpisodeTrace trace) {
         State state = sim.reset();
         int stepsDone = 0;
+        int budget = stepBudget(timeLimit);
+
+        if (trace != null) {
+            trace.startEpisode();
+        }
+
+        // Warm up and the like before the first decision's clock starts
+        planner.startEpisode(state);
 
         // Simulate the problem until the problem is won or lost
         while (state != null) {
-            // Make an MCTS object to calculate the best action to perform at this point
-            MCTS mcts = new MCTS(ps, state, stepsDone, timeLimit - STEP_TIME_BUFFER);
-            Action action = mcts.getBestAction();
+            // Ask the planner for the best action to perform at this point
+            long start = System.nanoTime();
+            Action action = planner.decide(state, stepsDone, budget);
+            long decisionTime = System.nanoTime() - start;
 
             // Perform the action
+            State previousState = state;
             state = sim.step(action);
+            planner.observe(action, state);
+
+            if (trace != null) {
+                recordStep(trace, planner, previousState, stepsDone, action, decisionTime, sim,
+                        state);
+            }
 
             if (sim.isGoalState(state)) {
                 // Won the simulation
@@ -88,4 +393,229 @@ public class Main {
 
         return false;
     }
+
+    /**
+     * Get the time a planner is given per decision, leaving a buffer for it running over
+     *
+     * @param timeLimit the time limit per step
+     *
+     * @return the planner's budget, in millis
+     */
+    static int stepBudget(int timeLimit) {
+        return timeLimit - Integer.getInteger(STEP_TIME_BUFFER_PROPERTY, STEP_TIME_BUFFER);
+    }
+
+    /**
+     * Record a step of an episode to its trace
+     *
+     * @param trace the trace
+     * @param planner the planner which chose the action
+     * @param state the state the action was chosen in
+     * @param stepsDone the steps done when the action was chosen
+     * @param action the chosen action
+     * @param decisionTime how long the decision took, in nanos
+     * @param sim the simulator, after performing the action
+     * @param nextState the state after the action, or null if the episode was lost
+     */
+    private static void recordStep(EpisodeTrace trace, Planner planner, State state,
+                                   int stepsDone, Action action, long decisionTime,
+                                   Simulator sim, State nextState) {
+        int iterations = 0;
+        int liveNodes = 0;
+
+        if (planner instanceof PlannerSession) {
+            iterations = ((PlannerSession) planner).getLastIterations();
+            liveNodes = ((PlannerSession) planner).getLastLiveNodes();
+        }
+
+        int outcome = FromStateSimulator.IN_PROGRESS;
+
+        if (nextState == null) {
+            outcome = FromStateSimulator.LOSS;
+        } else if (sim.isGoalState(nextState)) {
+            outcome = FromStateSimulator.WIN;
+        }
+
+        trace.record(stepsDone, state, action, iterations, liveNodes, decisionTime / 1000,
+                sim.getSteps(), outcome);
+    }
+
+    /**
+     * Open the episode trace for a problem if one has been configured
+     *
+     * @param ps the problem information
+     * @param inputFile the problem input file
+     *
+     * @return the trace, or null if none is configured
+     *
+     * @throws IOException if the trace file can't be created
+     */
+    static EpisodeTrace openEpisodeTrace(ProblemSpec ps, String inputFile) throws IOException {
+        String path = System.getProperty(TRACE_PROPERTY);
+
+        if (path == null) {
+            return null;
+        }
+
+        return new EpisodeTrace(path, ps, inputFile);
+    }
+
+    /**
+     * Create the planner for a problem: a client of the planner daemon if one is configured,
+     * otherwise a planner session in this process
+     *
+     * @param ps the problem information
+     * @param inputFile the problem input file
+     *
+     * @return the planner
+     *
+     * @throws IOException if the planner can't be created
+     */
+    static Planner openPlanner(ProblemSpec ps, String inputFile) throws IOException {
+        String daemon = System.getProperty(DAEMON_PROPERTY);
+
+        if (daemon != null) {
+            String[] hostPort = daemon.split(":");
+            return new PlannerClient(hostPort[0], Integer.parseInt(hostPort[1]), ps, inputFile);
+        }
+
+        return new PlannerSession(ps, inputFile);
+    }
+
+    /**
+     * Open the policy cache for a problem if one has been configured
+     *
+     * @param inputFile the problem input file
+     * @param actions the action list the planner indexes
+     *
+     * @return the policy cache, or null if none is configured
+     *
+     * @throws IOException if there is an error opening the cache
+     */
+    static PolicyCache openPolicyCache(String inputFile, List<Action> actions)
+            throws IOException {
+        String directory = System.getProperty(POLICY_CACHE_PROPERTY);
+
+        if (directory == null) {
+            return null;
+        }
+
+        return new PolicyCache(directory, inputFile, actions, Integer.getInteger(
+                POLICY_CACHE_MIN_VISITS_PROPERTY, DEFAULT_POLICY_CACHE_MIN_VISITS));
+    }
+
+    /**
+     * Open the search tree exporter if one has been configured
+     *
+     * @return the exporter, or null if none is configured
+     *
+     * @throws IOException if the export file can't be created
+     */
+    static TreeExporter openTreeExporter() throws IOException {
+        String path = System.getProperty(EXPORT_TREE_PROPERTY);
+
+        if (path == null) {
+            return null;
+        }
+
+        return new TreeExporter(path,
+                Integer.getInteger(EXPORT_TOP_K_PROPERTY, DEFAULT_EXPORT_TOP_K),
+                Integer.getInteger(EXPORT_DEPTH_PROPERTY, DEFAULT_EXPORT_DEPTH),
+                Integer.getInteger(EXPORT_MIN_VISITS_PROPERTY, DEFAULT_EXPORT_MIN_VISITS));
+    }
+
+    /**
+     * Connect to (or start) search workers for root parallel search if they have been configured
+     *
+     * @param inputFile the problem input file
+     *
+     * @return the coordinator, or null if no workers are configured
+     *
+     * @throws IOException if the workers can't be started or connected to
+     */
+    static RootParallelCoordinator openCoordinator(String inputFile) throws IOException {
+        String workers = System.getProperty(WORKERS_PROPERTY);
+        int localWorkers = Integer.getInteger(LOCAL_WORKERS_PROPERTY, 0);
+
+        if (workers != null) {
+            return new RootParallelCoordinator(inputFile, Arrays.asList(workers.split(",")));
+        } else if (localWorkers > 0) {
+            return RootParallelCoordinator.startLocalWorkers(inputFile, localWorkers,
+                    Integer.getInteger(WORKER_PORT_PROPERTY, DEFAULT_WORKER_PORT));
+        }
+
+        return null;
+    }
+
+    /**
+     * Apply the optional search settings given as system properties to an MCTS object
+     *
+     * @param ps the problem information
+     * @param mcts the MCTS object to configure
+     */
+    static void configureSearch(ProblemSpec ps, MCTS mcts) {
+        int playoutHorizon = Integer.getInteger(PLAYOUT_HORIZON_PROPERTY,
+                MCTS.DEFAULT_PLAYOUT_HORIZON);
+        mcts.setPlayoutHorizon(playoutHorizon);
+
+        String budgetMode = System.getProperty(BUDGET_MODE_PROPERTY, "prune");
+
+        if (!budgetMode.equals("prune") && !budgetMode.equals("freeze")) {
+            throw new IllegalArgumentException("Unknown budget mode: " + budgetMode);
+        }
+
+        mcts.setMemoryBudget(Integer.getInteger(NODE_BUDGET_PROPERTY, 0),
+                Long.getLong(BYTE_BUDGET_PROPERTY, 0), budgetMode.equals("prune"));
+
+        mcts.setLazyStates(Boolean.getBoolean(LAZY_STATES_PROPERTY));
+        mcts.setOpenLoop(Boolean.getBoolean(OPEN_LOOP_PROPERTY));
+        mcts.setIterationLimit(Integer.getInteger(ITERATION_LIMIT_PROPERTY, 0));
+
+        String rootSelection = System.getProperty(ROOT_SELECTION_PROPERTY, "uct");
+
+        if (!rootSelection.equals("uct") && !rootSelection.equals("halving")) {
+            throw new IllegalArgumentException("Unknown root selection: " + rootSelection);
+        }
+
+        mcts.setSequentialHalving(rootSelection.equals("halving"));
+        mcts.setLeafPlayouts(Integer.getInteger(LEAF_PLAYOUTS_PROPERTY, 1));
+        mcts.setPlayoutEventSampling(Integer.getInteger(PLAYOUT_EVENT_SAMPLING_PROPERTY, 0));
+
+        int fuelBucket = Integer.getInteger(FUEL_BUCKET_PROPERTY, 1);
+        int stepsBucket = Integer.getInteger(STEPS_BUCKET_PROPERTY, 0);
+        boolean ignoreSpareFuel = Boolean.getBoolean(IGNORE_SPARE_FUEL_PROPERTY);
+
+        if (fuelBucket > 1 || stepsBucket > 0 || ignoreSpareFuel) {
+            mcts.setStateAbstraction(new StateAbstraction(ps, fuelBucket, stepsBucket,
+                    ignoreSpareFuel));
+        }
+
+        String macroLengths = System.getProperty(MACRO_LENGTHS_PROPERTY);
+
+        if (macroLengths != null) {
+            mcts.setMacroLengths(Arrays.stream(macroLengths.split(","))
+                    .mapToInt(Integer::parseInt).toArray());
+        }
+
+        String evaluator = System.getProperty(LEAF_EVALUATOR_PROPERTY, "distance");
+
+        switch (evaluator) {
+            case "distance":
+                mcts.setLeafEvaluator(new DistanceEvaluator(ps, mcts.getConstants()));
+                break;
+            case "steps":
+                mcts.setLeafEvaluator(new StepsToGoalEvaluator(ps, mcts.getConstants()));
+                break;
+            case "batch":
+                mcts.setLeafEvaluator(new BatchRolloutSimulator(ps, Integer.getInteger(
+                        BATCH_SIZE_PROPERTY, BatchRolloutSimulator.DEFAULT_BATCH_SIZE),
+                        mcts.getConstants()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown leaf evaluator: " + evaluator);
+        }
+
+        // Playouts never reach a horizon of 0, so the batch is run as the new leaf's rollout
+        mcts.setEvaluateLeaves(evaluator.equals("batch") && playoutHorizon == 0);
+    }
 }
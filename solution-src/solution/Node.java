@@ -25,15 +25,26 @@ public class Node {
     private ArrayList<Node> childNodes;
 
     /**
-     * The state represented by the node
+     * The state represented by the node, or null if it is rebuilt on demand
      */
     private State state;
 
     /**
-     * Depth of the node in the tree
+     * Depth of the node in the tree, as the steps done from the root state to the node's state
      */
     private int stepsFromRoot;
 
+    /**
+     * Index of the move distance sampled on the vertex from the parent, or
+     * FromStateSimulator.NO_MOVE. Only used by nodes which don't store their state.
+     */
+    private byte outcome;
+
+    /**
+     * Key of the abstract state the node stands for. Only used when a state abstraction is in use.
+     */
+    private long abstractKey;
+
     /**
      * Number of times this node has been visited in the MCTS search
      */
@@ -60,6 +71,18 @@ public class Node {
         reward = 0;
     }
 
+    /**
+     * Create a node which doesn't store its state. The state is instead rebuilt by replaying the
+     * vertices from an ancestor with the sampled outcome of each.
+     *
+     * @param stepsFromRoot the tree depth
+     * @param outcome the move index sampled on the vertex from the parent
+     */
+    public Node(int stepsFromRoot, int outcome) {
+        this(null, stepsFromRoot);
+        this.outcome = (byte) outcome;
+    }
+
     /**
      * Set the parent node and label the vertex with an action
      *
@@ -80,6 +103,31 @@ public class Node {
         childNodes.add(childNode);
     }
 
+    /**
+     * Remove all of this node's children, turning it back into a leaf. The node keeps its own
+     * visits and reward, and the removed children are detached from it.
+     *
+     * @return the number of descendant nodes removed
+     */
+    public int pruneChildNodes() {
+        int removed = 0;
+        ArrayList<Node> stack = new ArrayList<>(childNodes);
+
+        for (Node child : childNodes) {
+            child.parentNode = null;
+        }
+
+        // Count the descendants without recursing, the tree can be deep
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            removed++;
+            stack.addAll(node.getChildNodes());
+        }
+
+        childNodes = new ArrayList<>();
+        return removed;
+    }
+
     /**
      * Called when backpropagating. Result is either 0 or 1 (corresponding to loss / win from this
      * node).
@@ -91,6 +139,17 @@ public class Node {
         reward += result;
     }
 
+    /**
+     * Called when backpropagating several playouts at once.
+     *
+     * @param count the number of playouts
+     * @param rewardSum the total reward of the playouts
+     */
+    public void addVisits(int count, double rewardSum) {
+        visits += count;
+        reward += rewardSum;
+    }
+
     /**
      * Get the parent node
      *
@@ -121,12 +180,22 @@ public class Node {
     /**
      * Get the state represented by the node
      *
-     * @return the state represented by the node
+     * @return the state represented by the node, or null if the node doesn't store its state
      */
     public State getState() {
         return state;
     }
 
+    /**
+     * Get the move index sampled on the vertex from the parent. Only meaningful for nodes which
+     * don't store their state.
+     *
+     * @return the move index
+     */
+    public int getOutcome() {
+        return outcome;
+    }
+
     /**
      * Get the number of times this node has been visited in the tree search
      *
@@ -155,7 +224,8 @@ public class Node {
     }
 
     /**
-     * Get the child node with a specified state and action.
+     * Get the child node with a specified state and action. Children which don't store their
+     * state, such as the lazy siblings of a macro-action's children, never match.
      *
      * @param state the state
      * @param action the action
@@ -164,8 +234,76 @@ public class Node {
      */
     public Node childWithStateAction(State state, Action action) {
         for (Node child : childNodes) {
-            if (statesEqual(state, child.getState()) && actionsEqual(child.getParentAction(),
-                    action)) {
+            if (actionsEqual(child.getParentAction(), action) && child.getState() != null &&
+                    statesEqual(state, child.getState())) {
+                return child;
+            }
+        }
+
+        // No child exists
+        return null;
+    }
+
+    /**
+     * Get the child node with a specified abstract state and action. Used when a state
+     * abstraction merges near identical states.
+     *
+     * @param abstractKey the key of the abstract state
+     * @param action the action
+     *
+     * @return the child node if the abstract state and action match, or null if none exists
+     */
+    public Node childWithAbstractStateAction(long abstractKey, Action action) {
+        for (Node child : childNodes) {
+            if (child.abstractKey == abstractKey && actionsEqual(child.getParentAction(), action)) {
+                return child;
+            }
+        }
+
+        // No child exists
+        return null;
+    }
+
+    /**
+     * Set the key of the abstract state the node stands for
+     *
+     * @param abstractKey the key
+     */
+    public void setAbstractKey(long abstractKey) {
+        this.abstractKey = abstractKey;
+    }
+
+    /**
+     * Get the child node connected by an action with a specified sampled outcome. Used for nodes
+     * which don't store their state.
+     *
+     * @param action the action
+     * @param outcome the move index sampled when performing the action
+     *
+     * @return the child node if the action and outcome match, or null if none exists
+     */
+    public Node childWithActionOutcome(Action action, int outcome) {
+        for (Node child : childNodes) {
+            if (child.getOutcome() == outcome && actionsEqual(child.getParentAction(), action)) {
+                return child;
+            }
+        }
+
+        // No child exists
+        return null;
+    }
+
+    /**
+     * Get the child node connected by an action, regardless of the outcome. Used by open loop
+     * search, where nodes represent action sequences.
+     *
+     * @param action the action
+     *
+     * @return the child node connected by the action, or null if none exists
+     */
+    public Node childWithAction(Action action) {
+        for (Node child : childNodes) {
+            if (actionsEqual(child.getParentAction(), action)) {
                 return child;
             }
         }
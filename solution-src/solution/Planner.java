@@ -0,0 +1,46 @@
+package solution;
+
+import problem.Action;
+import simulator.State;
+
+/**
+ * A planner which chooses the actions of a problem one step at a time. A planner is built once
+ * per problem and keeps its per-problem structures alive between decisions.
+ */
+public interface Planner extends AutoCloseable {
+    /**
+     * Prepare for a new episode, e.g. by warming up the search, before the clock of its first
+     * decision starts. Planners which aren't told are prepared in the first decision instead.
+     *
+     * @param startState the start state of the episode
+     */
+    default void startEpisode(State startState) {
+        // Nothing to prepare
+    }
+
+    /**
+     * Choose the action to perform from a state. A decision with no steps done starts a new
+     * episode.
+     *
+     * @param state the current state
+     * @param stepsDone the number of steps done so far in the episode
+     * @param budget the time allowed for the decision, in millis
+     *
+     * @return the action to perform
+     */
+    Action decide(State state, int stepsDone, int budget);
+
+    /**
+     * Tell the planner the outcome of performing an action
+     *
+     * @param action the action performed
+     * @param newState the state reached, or null if the episode ended without reaching the goal
+     */
+    void observe(Action action, State newState);
+
+    /**
+     * Release the resources held by the planner
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,136 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.State;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * Planner which forwards every decision to a PlannerDaemon.
+ *
+ * The protocol is binary, over a single connection. Each request starts with an int request
+ * type:
+ *
+ * LOAD: UTF problem file path. Reply: UTF problem hash, int action count, long action list
+ * signature.
+ * DECIDE: UTF problem hash, state, int steps done, int budget. Reply: int action index.
+ * OBSERVE: UTF problem hash, int action index, boolean whether a state follows, state. No reply.
+ *
+ * States are written with StateCodec, and actions are indices into the discretized action list.
+ * The action list depends on the fuel discretization each side is configured with, so the client
+ * checks the daemon's list matches its own when loading the problem.
+ */
+public class PlannerClient implements Planner {
+    /**
+     * The connection to the daemon
+     */
+    private Socket socket;
+
+    /**
+     * Stream of replies from the daemon
+     */
+    private DataInputStream in;
+
+    /**
+     * Stream of requests to the daemon
+     */
+    private DataOutputStream out;
+
+    /**
+     * Hash identifying the problem on the daemon
+     */
+    private String problemHash;
+
+    /**
+     * All possible actions given the problem, in the order the daemon indexes them
+     */
+    private ArrayList<Action> actions;
+
+    /**
+     * Connect to a daemon and load a problem on it
+     *
+     * @param host the daemon host
+     * @param port the daemon port
+     * @param ps the problem information
+     * @param problemFile the problem input file
+     *
+     * @throws IOException if the daemon can't be connected to, can't load the problem or uses a
+     * different action list
+     */
+    public PlannerClient(String host, int port, ProblemSpec ps, String problemFile)
+            throws IOException {
+        actions = MCTS.makeValidActionsDiscretized(ps);
+
+        socket = new Socket(InetAddress.getByName(host), port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        out.writeInt(PlannerDaemon.LOAD);
+        out.writeUTF(new File(problemFile).getAbsolutePath());
+        out.flush();
+        problemHash = in.readUTF();
+        int actionCount = in.readInt();
+        long signature = in.readLong();
+
+        if (actionCount != actions.size() || signature != MCTS.actionsSignature(actions)) {
+            socket.close();
+            throw new IOException("The daemon's action list (" + actionCount +
+                    " actions) doesn't match this planner's (" + actions.size() +
+                    " actions), check mcts.fuelIntervals on both");
+        }
+    }
+
+    @Override
+    public Action decide(State state, int stepsDone, int budget) {
+        try {
+            out.writeInt(PlannerDaemon.DECIDE);
+            out.writeUTF(problemHash);
+            StateCodec.write(out, state);
+            out.writeInt(stepsDone);
+            out.writeInt(budget);
+            out.flush();
+
+            return actions.get(in.readInt());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void observe(Action action, State newState) {
+        try {
+            out.writeInt(PlannerDaemon.OBSERVE);
+            out.writeUTF(problemHash);
+            out.writeInt(MCTS.indexOfAction(actions, action));
+            out.writeBoolean(newState != null);
+
+            if (newState != null) {
+                StateCodec.write(out, newState);
+            }
+
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more to do with the connection
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.State;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long running planner process. Clients connect over a local socket, load problem files and ask
+ * for decisions, so the JVM start up and JIT warm up are only paid once for many episodes.
+ *
+ * Loaded problems are cached by the hash of the file contents. Planner sessions are pooled per
+ * problem: each connection borrows a session for every problem it uses and returns it when the
+ * connection closes, so concurrent clients never share a session. Sessions beyond the pool size
+ * are closed. The sessions of a problem share one policy cache, and all sessions share one tree
+ * exporter. Root parallel workers are not used by the daemon.
+ *
+ * See PlannerClient for the protocol.
+ */
+public class PlannerDaemon {
+    /**
+     * Request to load a problem file
+     */
+    static final int LOAD = 1;
+
+    /**
+     * Request for a decision
+     */
+    static final int DECIDE = 2;
+
+    /**
+     * Report of the outcome of an action
+     */
+    static final int OBSERVE = 3;
+
+    /**
+     * Most idle sessions kept per problem
+     */
+    private static final int MAX_IDLE_SESSIONS = 4;
+
+    /**
+     * Loaded problems, keyed by file hash
+     */
+    private ConcurrentHashMap<String, ProblemSpec> problems = new ConcurrentHashMap<>();
+
+    /**
+     * Policy cache shared by the sessions of each problem, keyed by file hash. Problems without
+     * a policy cache have no entry.
+     */
+    private ConcurrentHashMap<String, PolicyCache> policyCaches = new ConcurrentHashMap<>();
+
+    /**
+     * Tree exporter shared by all the sessions, or null if trees aren't exported
+     */
+    private TreeExporter treeExporter;
+
+    /**
+     * Sessions not currently in use by a connection, keyed by file hash
+     */
+    private ConcurrentHashMap<String, ConcurrentLinkedQueue<PlannerSession>> idleSessions =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Serve clients on a local port until the process is stopped. Each connection is handled
+     * on its own thread.
+     *
+     * @param port the port to listen on
+     *
+     * @throws IOException if the port can't be opened
+     */
+    public void serve(int port) throws IOException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        treeExporter = Main.openTreeExporter();
+
+        // The daemon is normally stopped by killing the process
+        Thread shutdown = new Thread(this::close, "planner-daemon-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdown);
+
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Planner daemon listening on port " + port);
+
+            while (true) {
+                Socket socket = server.accept();
+
+                executor.execute(() -> {
+                    try (Socket connection = socket) {
+                        handleConnection(connection);
+                    } catch (IOException e) {
+                        System.out.println("Planner daemon connection failed: " +
+                                e.getMessage());
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            Runtime.getRuntime().removeShutdownHook(shutdown);
+            close();
+        }
+    }
+
+    /**
+     * Close the idle sessions and the shared policy caches and tree exporter
+     */
+    private synchronized void close() {
+        for (ConcurrentLinkedQueue<PlannerSession> sessions : idleSessions.values()) {
+            PlannerSession session;
+
+            while ((session = sessions.poll()) != null) {
+                session.close();
+            }
+        }
+
+        for (PolicyCache policyCache : policyCaches.values()) {
+            policyCache.close();
+        }
+
+        policyCaches.clear();
+
+        if (treeExporter != null) {
+            treeExporter.close();
+            treeExporter = null;
+        }
+    }
+
+    /**
+     * Handle the requests of a single client connection
+     *
+     * @param socket the connection
+     *
+     * @throws IOException if there is an error communicating with the client
+     */
+    private void handleConnection(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream()));
+
+        // Sessions borrowed by this connection, keyed by file hash
+        Map<String, PlannerSession> sessions = new HashMap<>();
+
+        try {
+            while (true) {
+                int request;
+
+                try {
+                    request = in.readInt();
+                } catch (EOFException e) {
+                    // The client closed the connection
+                    return;
+                }
+
+                switch (request) {
+                    case LOAD: {
+                        String hash = load(in.readUTF());
+                        List<Action> actions = MCTS.makeValidActionsDiscretized(problems.get(hash));
+
+                        // The client checks it indexes the same actions
+                        out.writeUTF(hash);
+                        out.writeInt(actions.size());
+                        out.writeLong(MCTS.actionsSignature(actions));
+                        out.flush();
+                        break;
+                    }
+
+                    case DECIDE: {
+                        PlannerSession session = borrow(sessions, in.readUTF());
+                        State state = StateCodec.read(in);
+                        int stepsDone = in.readInt();
+                        int budget = in.readInt();
+
+                        Action action = session.decide(state, stepsDone, budget);
+                        out.writeInt(MCTS.indexOfAction(session.getValidActions(), action));
+                        out.flush();
+                        break;
+                    }
+
+                    case OBSERVE: {
+                        PlannerSession session = borrow(sessions, in.readUTF());
+                        Action action = session.getValidActions().get(in.readInt());
+                        State newState = in.readBoolean() ? StateCodec.read(in) : null;
+
+                        session.observe(action, newState);
+                        break;
+                    }
+
+                    default:
+                        throw new IOException("Unknown request " + request);
+                }
+            }
+        } finally {
+            for (Map.Entry<String, PlannerSession> entry : sessions.entrySet()) {
+                giveBack(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Load a problem file, unless a file with the same contents has already been loaded
+     *
+     * @param problemFile the problem input file
+     *
+     * @return the hash identifying the problem
+     *
+     * @throws IOException if the file can't be read
+     */
+    private String load(String problemFile) throws IOException {
+        String hash = PolicyCache.fileHash(problemFile);
+
+        if (!problems.containsKey(hash)) {
+            synchronized (this) {
+                // Only one connection may map the problem's policy cache file
+                if (!problems.containsKey(hash)) {
+                    ProblemSpec ps = new ProblemSpec(problemFile);
+                    PolicyCache policyCache = Main.openPolicyCache(problemFile,
+                            MCTS.makeValidActionsDiscretized(ps));
+
+                    if (policyCache != null) {
+                        policyCaches.put(hash, policyCache);
+                    }
+
+                    idleSessions.put(hash, new ConcurrentLinkedQueue<>());
+                    problems.put(hash, ps);
+                }
+            }
+        }
+
+        return hash;
+    }
+
+    /**
+     * Get the session a connection uses for a problem, borrowing an idle one or creating a new
+     * one the first time the connection uses the problem
+     *
+     * @param sessions the sessions borrowed by the connection
+     * @param hash the hash identifying the problem
+     *
+     * @return the session
+     *
+     * @throws IOException if the problem hasn't been loaded or the session can't be created
+     */
+    private PlannerSession borrow(Map<String, PlannerSession> sessions, String hash)
+            throws IOException {
+        PlannerSession session = sessions.get(hash);
+
+        if (session != null) {
+            return session;
+        }
+
+        ProblemSpec ps = problems.get(hash);
+
+        if (ps == null) {
+            throw new IOException("Problem not loaded: " + hash);
+        }
+
+        session = idleSessions.get(hash).poll();
+
+        if (session == null) {
+            session = new PlannerSession(ps, policyCaches.get(hash), treeExporter);
+        }
+
+        sessions.put(hash, session);
+        return session;
+    }
+
+    /**
+     * Return a session to the pool when its connection closes, or close it if the pool of its
+     * problem is full
+     *
+     * @param hash the hash identifying the problem
+     * @param session the session
+     */
+    private void giveBack(String hash, PlannerSession session) {
+        ConcurrentLinkedQueue<PlannerSession> pool = idleSessions.get(hash);
+
+        if (pool.size() < MAX_IDLE_SESSIONS) {
+            pool.add(session);
+        } else {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * The MCTS planner for a single problem. Everything which doesn't depend on the current state is
+ * built once when the session is created and reused for every decision: the MCTS object with its
+ * action list, simulators and settings, the leaf evaluator's tables, the exact solver, the policy
+ * cache and the root parallel workers.
+ *
+ * Settings are read from the mcts.* system properties described in Main.
+ */
+public class PlannerSession implements Planner {
+    /**
+     * Decision source of actions chosen by searching the tree in this process
+     */
+    private static final String SOURCE_SEARCH = "search";
+
+    /**
+     * The problem specification
+     */
+    private ProblemSpec problemSpec;
+
+    /**
+     * The search, reset for each decision
+     */
+    private MCTS mcts;
+
+    /**
+     * Exact solver for small problems, or null if not used
+     */
+    private ExactSolver solver;
+
+    /**
+     * String representation of the start state the solver was last solved from
+     */
+    private String solvedFrom;
+
+    /**
+     * Persistent policy cache, or null if not used
+     */
+    private PolicyCache policyCache;
+
+    /**
+     * Root parallel coordinator, or null to search in this process
+     */
+    private RootParallelCoordinator coordinator;
+
+    /**
+     * Whether the policy cache and tree exporter are shared with other sessions, and so are left
+     * open when this session is closed
+     */
+    private boolean sharedResources;
+
+    /**
+     * Capacity of the per-episode value cache, or 0 if not used
+     */
+    private int valueCacheCapacity;
+
+    /**
+     * Whether to report the tree size after each search
+     */
+    private boolean reportTreeSize;
+
+    /**
+     * How far past its budget each decision finished, in microseconds. Decisions finishing early
+     * count as 0.
+     */
+    private LatencyHistogram overruns = new LatencyHistogram();
+
+    /**
+     * Exporter of the finished search trees, or null if they aren't exported
+     */
+    private TreeExporter treeExporter;
+
+    /**
+     * How long each decision took, in microseconds
+     */
+    private LatencyHistogram decisionTimes = new LatencyHistogram();
+
+    /**
+     * Search iterations per second of each decision made by searching
+     */
+    private LatencyHistogram iterationRates = new LatencyHistogram();
+
+    /**
+     * Search iterations run for the latest decision, 0 if it wasn't searched
+     */
+    private int lastIterations;
+
+    /**
+     * Live tree nodes at the end of the latest decision, 0 if it wasn't searched
+     */
+    private int lastLiveNodes;
+
+    /**
+     * Where the action of the current decision came from
+     */
+    private String source;
+
+    /**
+     * Longest time to spend warming up before the first decision, in millis. 0 means no warm up.
+     */
+    private int warmUpTime;
+
+    /**
+     * Whether startEpisode() has prepared the episode whose first decision is next
+     */
+    private boolean episodeStarted;
+
+    /**
+     * Create a session for a problem which isn't backed by a file. The policy cache, root
+     * parallel workers and tree exporter are not available.
+     *
+     * @param problemSpec the problem specification
+     */
+    public PlannerSession(ProblemSpec problemSpec) {
+        this.problemSpec = problemSpec;
+
+        mcts = new MCTS(problemSpec);
+        Main.configureSearch(problemSpec, mcts);
+
+        if (Boolean.parseBoolean(System.getProperty(Main.EXACT_SOLVER_PROPERTY, "true")) &&
+                ExactSolver.isApplicable(problemSpec)) {
+            solver = new ExactSolver(problemSpec);
+        }
+
+        valueCacheCapacity = Integer.getInteger(Main.VALUE_CACHE_PROPERTY, 0);
+        warmUpTime = Integer.getInteger(Main.WARM_UP_PROPERTY, 0);
+        reportTreeSize = Integer.getInteger(Main.NODE_BUDGET_PROPERTY, 0) > 0 ||
+                Long.getLong(Main.BYTE_BUDGET_PROPERTY, 0) > 0;
+    }
+
+    /**
+     * Create a session for a problem loaded from a file, with the policy cache, root parallel
+     * workers and tree exporter if they are configured
+     *
+     * @param problemSpec the problem specification
+     * @param problemFile the problem input file
+     *
+     * @throws IOException if the policy cache, workers or export file can't be opened
+     */
+    public PlannerSession(ProblemSpec problemSpec, String problemFile) throws IOException {
+        this(problemSpec);
+
+        policyCache = Main.openPolicyCache(problemFile, mcts.getValidActions());
+        coordinator = Main.openCoordinator(problemFile);
+        treeExporter = Main.openTreeExporter();
+    }
+
+    /**
+     * Create a session for a problem using a policy cache and tree exporter shared with other
+     * sessions, which it leaves open when it is closed. Root parallel workers are not used, as
+     * their ports and connections can't be shared.
+     *
+     * @param problemSpec the problem specification
+     * @param policyCache the shared policy cache, or null if not used
+     * @param treeExporter the shared tree exporter, or null if trees aren't exported
+     */
+    public PlannerSession(ProblemSpec problemSpec, PolicyCache policyCache,
+                          TreeExporter treeExporter) {
+        this(problemSpec);
+
+        this.policyCache = policyCache;
+        this.treeExporter = treeExporter;
+        sharedResources = true;
+    }
+
+    @Override
+    public Action decide(State state, int stepsDone, int budget) {
+        SearchEvents.DecisionEvent event = SearchEvents.decision();
+        event.begin();
+        long start = System.nanoTime();
+        source = null;
+
+        // Preparing an episode the caller didn't start takes from the first decision's budget
+        int searchBudget = budget;
+
+        if (stepsDone == 0 && !episodeStarted) {
+            prepareEpisode(state);
+            long preparation = (System.nanoTime() - start) / 1000000;
+            searchBudget = (int) Math.max(1, budget - preparation);
+        }
+
+        episodeStarted = false;
+        Action action = chooseAction(state, stepsDone, searchBudget);
+
+        long elapsed = System.nanoTime() - start;
+        overruns.record(elapsed / 1000 - budget * 1000L);
+        decisionTimes.record(elapsed / 1000);
+
+        if (SOURCE_SEARCH.equals(source)) {
+            iterationRates.record((long) (mcts.getIterations() / (elapsed / 1e9)));
+        }
+
+        lastIterations = SOURCE_SEARCH.equals(source) ? mcts.getIterations() : 0;
+        lastLiveNodes = SOURCE_SEARCH.equals(source) ? mcts.getLiveNodes() : 0;
+
+        event.stepsDone = stepsDone;
+        event.budget = budget;
+        event.iterations = lastIterations;
+        event.liveNodes = lastLiveNodes;
+        event.source = source;
+        event.commit();
+
+        return action;
+    }
+
+    /**
+     * Choose an action with the exact solver, policy cache, root parallel workers or a search in
+     * this process, whichever is available first
+     *
+     * @param state the current state
+     * @param stepsDone the number of steps done so far in the episode
+     * @param budget the time allowed for the decision, in millis
+     *
+     * @return the action to perform
+     */
+    private Action chooseAction(State state, int stepsDone, int budget) {
+        Action action = solver == null ? null : solver.getAction(state);
+        source = "solver";
+
+        if (action == null && policyCache != null) {
+            int cached = policyCache.lookup(state, stepsDone);
+
+            if (cached >= 0 && cached < mcts.getValidActions().size()) {
+                action = mcts.getValidActions().get(cached);
+                source = "cache";
+            }
+        }
+
+        if (action == null && coordinator != null) {
+            action = coordinator.getBestAction(problemSpec, state, stepsDone, budget);
+            source = "workers";
+        }
+
+        if (action == null) {
+            source = SOURCE_SEARCH;
+            mcts.reset(state, stepsDone, budget);
+            action = mcts.getBestAction();
+
+            if (reportTreeSize) {
+                System.out.println("Step " + stepsDone + ": " + mcts.getLiveNodes() +
+                        " live nodes, " + mcts.getPrunedNodes() + " pruned");
+            }
+
+            if (treeExporter != null) {
+                treeExporter.submit(stepsDone, mcts.getRoot());
+            }
+
+            if (policyCache != null) {
+                Node root = mcts.getRoot();
+                int visits = root.getActionVisits(action);
+
+                policyCache.record(state, stepsDone, mcts.getValidActions().indexOf(action),
+                        visits, root.getActionReward(action) / visits);
+            }
+        }
+
+        return action;
+    }
+
+    /**
+     * Get the list of actions the planner chooses from
+     *
+     * @return the discretized valid actions
+     */
+    public ArrayList<Action> getValidActions() {
+        return mcts.getValidActions();
+    }
+
+    @Override
+    public void observe(Action action, State newState) {
+        if (newState == null || newState.getPos() >= problemSpec.getN()) {
+            // The episode is over, playout values shouldn't carry over to the next one
+            mcts.setValueCache(null);
+        }
+    }
+
+    /**
+     * Get the distribution of how far past their budget decisions finished
+     *
+     * @return the overrun histogram, in microseconds
+     */
+    public LatencyHistogram getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Get the number of search iterations run for the latest decision
+     *
+     * @return the iterations, or 0 if the decision wasn't made by searching
+     */
+    public int getLastIterations() {
+        return lastIterations;
+    }
+
+    /**
+     * Get the number of live tree nodes at the end of the latest decision
+     *
+     * @return the live nodes, or 0 if the decision wasn't made by searching
+     */
+    public int getLastLiveNodes() {
+        return lastLiveNodes;
+    }
+
+    /**
+     * Get the distribution of how long decisions took
+     *
+     * @return the decision time histogram, in microseconds
+     */
+    public LatencyHistogram getDecisionTimes() {
+        return decisionTimes;
+    }
+
+    /**
+     * Get the distribution of search speed over the decisions made by searching
+     *
+     * @return the iteration rate histogram, in iterations per second
+     */
+    public LatencyHistogram getIterationRates() {
+        return iterationRates;
+    }
+
+    @Override
+    public void close() {
+        if (overruns.getCount() > 0) {
+            System.out.println("Decision overrun: " + overruns.summary("us"));
+        }
+
+        if (coordinator != null) {
+            coordinator.close();
+        }
+
+        if (sharedResources) {
+            return;
+        }
+
+        if (policyCache != null) {
+            policyCache.close();
+        }
+
+        if (treeExporter != null) {
+            treeExporter.close();
+        }
+    }
+
+    /**
+     * Prepare for a new episode before the clock of its first decision starts
+     *
+     * @param startState the start state of the episode
+     */
+    @Override
+    public void startEpisode(State startState) {
+        prepareEpisode(startState);
+        episodeStarted = true;
+    }
+
+    /**
+     * Prepare for a new episode: warm up the search the first time, solve small problems exactly
+     * from the start state and start a fresh value cache
+     *
+     * @param startState the start state of the episode
+     */
+    private void prepareEpisode(State startState) {
+        if (warmUpTime > 0) {
+            // Warm up without a value cache, so the synthetic playouts don't leak into it
+            mcts.setValueCache(null);
+            SearchEvents.SearchPhaseEvent event = SearchEvents.searchPhase();
+            event.begin();
+            WarmUp.run(mcts, startState, 0, warmUpTime);
+            event.phase = "warmUp";
+            event.commit();
+            warmUpTime = 0;
+        }
+
+        if (solver != null && !startState.toString().equals(solvedFrom)) {
+            SearchEvents.SearchPhaseEvent event = SearchEvents.searchPhase();
+            event.begin();
+            boolean solved = solver.solve(startState);
+            event.phase = "exactSolve";
+            event.nodes = solver.getStateCount();
+            event.commit();
+
+            if (solved) {
+                solvedFrom = startState.toString();
+                System.out.println("Solved exactly over " + solver.getStateCount() + " states");
+            } else {
+                // Too large, and it will be for every start state
+                solver = null;
+            }
+        }
+
+        mcts.setValueCache(valueCacheCapacity > 0 ? new ValueCache(valueCacheCapacity) : null);
+    }
+}
@@ -0,0 +1,244 @@
+package solution;
+
+import problem.Action;
+import simulator.State;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Persistent cache of decisions made by MCTS, shared between runs of the same problem. Each
+ * problem file and action list gets its own cache file, named by the hash of the file contents
+ * and the signature of the action list, which holds a fixed size open addressing hash table
+ * accessed through a memory mapped buffer. Decisions are stored as action indices, so runs with
+ * a different fuel discretization never read each other's decisions.
+ *
+ * Each slot records the best action from a (state, steps done) pair along with the number of root
+ * visits and mean reward which backed the decision, so later runs can decide whether to trust it.
+ */
+public class PolicyCache {
+    /**
+     * Identifies a policy cache file
+     */
+    private static final int MAGIC = 0x4d435453;
+
+    /**
+     * Number of slots in a cache file. Must be a power of two.
+     */
+    private static final int CAPACITY = 1 << 16;
+
+    /**
+     * Size of the file header: magic, capacity, number of entries and action list signature
+     */
+    private static final int HEADER_BYTES = 20;
+
+    /**
+     * Size of a slot: key, action index, visits and mean reward
+     */
+    private static final int SLOT_BYTES = 24;
+
+    /**
+     * Offset of the entry count in the header
+     */
+    private static final int ENTRIES_OFFSET = 8;
+
+    /**
+     * Offset of the action list signature in the header
+     */
+    private static final int SIGNATURE_OFFSET = 12;
+
+    /**
+     * The mapped cache file
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * Minimum number of visits a cached decision needs to be used
+     */
+    private int minVisits;
+
+    /**
+     * Open (or create) the cache file for a problem
+     *
+     * @param directory the directory holding the cache files
+     * @param problemFile the problem input file
+     * @param actions the action list the cached action indices index
+     * @param minVisits minimum number of visits a cached decision needs to be used
+     *
+     * @throws IOException if there is an error reading the problem file or mapping the cache
+     */
+    public PolicyCache(String directory, String problemFile, List<Action> actions, int minVisits)
+            throws IOException {
+        this.minVisits = minVisits;
+
+        long signature = MCTS.actionsSignature(actions);
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        Path cacheFile = dir.resolve(fileHash(problemFile) + "-" + Long.toHexString(signature) +
+                ".policy");
+
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            boolean created = channel.size() == 0;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_BYTES + (long) CAPACITY * SLOT_BYTES);
+
+            if (created) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, CAPACITY);
+                buffer.putInt(ENTRIES_OFFSET, 0);
+                buffer.putLong(SIGNATURE_OFFSET, signature);
+            } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != CAPACITY) {
+                throw new IOException("Not a policy cache file: " + cacheFile);
+            } else if (buffer.getLong(SIGNATURE_OFFSET) != signature) {
+                throw new IOException("Policy cache for another action list: " + cacheFile);
+            }
+        }
+    }
+
+    /**
+     * Get the cached decision for a state, if it is backed by enough visits
+     *
+     * @param state the state
+     * @param stepsDone the number of steps done so far
+     *
+     * @return the index of the cached action in the discretized action list, or -1 if none
+     */
+    public synchronized int lookup(State state, int stepsDone) {
+        int slot = findSlot(key(state, stepsDone));
+
+        if (slot < 0 || buffer.getLong(slot) == 0 || buffer.getInt(slot + 12) < minVisits) {
+            return -1;
+        }
+
+        return buffer.getInt(slot + 8);
+    }
+
+    /**
+     * Record a decision made by a search. An existing entry for the same state is only replaced
+     * if the new decision is backed by more visits.
+     *
+     * @param state the state the search was run from
+     * @param stepsDone the number of steps done so far
+     * @param actionIndex the index of the chosen action in the discretized action list
+     * @param visits number of root visits of the chosen action
+     * @param meanReward mean reward of the chosen action
+     */
+    public synchronized void record(State state, int stepsDone, int actionIndex, int visits,
+                                    double meanReward) {
+        long key = key(state, stepsDone);
+        int slot = findSlot(key);
+
+        if (slot < 0) {
+            // The table is full
+            return;
+        }
+
+        if (buffer.getLong(slot) == 0) {
+            buffer.putInt(ENTRIES_OFFSET, buffer.getInt(ENTRIES_OFFSET) + 1);
+        } else if (buffer.getInt(slot + 12) >= visits) {
+            return;
+        }
+
+        buffer.putInt(slot + 8, actionIndex);
+        buffer.putInt(slot + 12, visits);
+        buffer.putDouble(slot + 16, meanReward);
+        buffer.putLong(slot, key);
+    }
+
+    /**
+     * Get the number of decisions stored
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return buffer.getInt(ENTRIES_OFFSET);
+    }
+
+    /**
+     * Flush the cache to disk
+     */
+    public synchronized void close() {
+        buffer.force();
+    }
+
+    /**
+     * Find the slot holding a key, or the empty slot it would be inserted into, using linear
+     * probing
+     *
+     * @param key the key
+     *
+     * @return the byte offset of the slot, or -1 if the table is full
+     */
+    private int findSlot(long key) {
+        int index = (int) (key ^ (key >>> 32)) & (CAPACITY - 1);
+
+        for (int probe = 0; probe < CAPACITY; probe++) {
+            int slot = HEADER_BYTES + index * SLOT_BYTES;
+            long slotKey = buffer.getLong(slot);
+
+            if (slotKey == key || slotKey == 0) {
+                return slot;
+            }
+
+            index = (index + 1) & (CAPACITY - 1);
+        }
+
+        return -1;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a state and the number of steps done. Never 0, which marks an empty
+     * slot.
+     *
+     * @param state the state
+     * @param stepsDone the number of steps done
+     *
+     * @return the key
+     */
+    private static long key(State state, int stepsDone) {
+        String text = state.toString() + "@" + stepsDone;
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Hash the contents of a problem file
+     *
+     * @param problemFile the problem input file
+     *
+     * @return the SHA-1 hash as a hex string
+     *
+     * @throws IOException if there is an error reading the file
+     */
+    static String fileHash(String problemFile) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(Files.readAllBytes(Paths.get(problemFile)));
+
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -1,33 +1,87 @@
 package solution;
 
+import problem.Action;
 import problem.ProblemSpec;
 import simulator.Simulator;
+import simulator.State;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * Repeatedly test a problem and calculate the statistics
  */
 public class ProblemTester extends Main {
+    /**
+     * Command line argument which compares two configurations on common random numbers
+     */
+    private static final String PAIRED_ARGUMENT = "--paired";
+
+    /**
+     * System property holding the seed of the first paired episode, later episodes use the
+     * following seeds
+     */
+    private static final String PAIRED_SEED_PROPERTY = "mcts.pairedSeed";
+
+    /**
+     * Name of the first paired configuration, and of its policy cache subdirectory
+     */
+    private static final String CONFIG_A = "A";
+
+    /**
+     * Name of the second paired configuration, and of its policy cache subdirectory
+     */
+    private static final String CONFIG_B = "B";
+
+    /**
+     * Normal quantile of a two sided 95% confidence interval
+     */
+    private static final double Z_95 = 1.96;
+
     /**
      * Entry point of the program
      *
      * @param args command line arguments. args[0] is the input file, args[1] is the output file,
      * args[2] is the number of tests to run, and optionally args[3] is the time per simulation
-     * iteration.
+     * iteration. "--paired A B" anywhere compares two configurations instead, each given as
+     * comma separated property=value settings.
      *
      * @throws IOException if there is an error handling the input or output file
      */
     public static void main(String[] args) throws IOException {
-        String inputFile = args[0];
-        String outputFile = args[1];
-        int count = Integer.parseInt(args[2]);
+        List<String> positional = new ArrayList<>();
+        String configA = null;
+        String configB = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals(PAIRED_ARGUMENT)) {
+                if (i + 2 >= args.length) {
+                    throw new IllegalArgumentException(PAIRED_ARGUMENT +
+                            " needs two configurations");
+                }
+
+                configA = args[i + 1];
+                configB = args[i + 2];
+                i += 2;
+            } else {
+                positional.add(args[i]);
+            }
+        }
+
+        String inputFile = positional.get(0);
+        String outputFile = positional.get(1);
+        int count = Integer.parseInt(positional.get(2));
 
         int timeLimit = STEP_TIME_LIMIT;
 
         // Optional third argument, a different step time limit (in millis)
-        if (args.length > 3) {
-            timeLimit = Integer.parseInt(args[3]);
+        if (positional.size() > 3) {
+            timeLimit = Integer.parseInt(positional.get(3));
         }
 
         // Load the problem
@@ -37,13 +91,21 @@ public class ProblemTester extends Main {
         // Create a simulator
         Simulator sim = new Simulator(ps, outputFile);
 
+        if (configA != null) {
+            comparePaired(ps, inputFile, sim.reset(), count, timeLimit, configA, configB);
+            return;
+        }
+
+        Planner planner = openPlanner(ps, inputFile);
+        EpisodeTrace trace = openEpisodeTrace(ps, inputFile);
+
         int successful = 0;
         int totalStepsRequired = 0;
 
         // Test count number of times
         for (int i = 1; i < count + 1; i++) {
             // Do a simulation
-            boolean solved = simulateProblem(ps, sim, timeLimit);
+            boolean solved = simulateProblem(sim, planner, timeLimit, trace);
 
             if (solved) {
                 System.out.println("Simulation successful.");
@@ -64,5 +126,220 @@ public class ProblemTester extends Main {
             System.out.println("Average steps required for successful simulation: " +
                     totalStepsRequired / (double) successful);
         }
+
+        if (planner instanceof PlannerSession) {
+            PlannerSession session = (PlannerSession) planner;
+            int level = ps.getLevel().getLevelNumber();
+
+            System.out.println("Level " + level + " decision time: " +
+                    session.getDecisionTimes().summary("us"));
+
+            if (session.getIterationRates().getCount() > 0) {
+                System.out.println("Level " + level + " search speed: " +
+                        session.getIterationRates().summary("iterations/s"));
+            }
+        }
+
+        planner.close();
+
+        if (trace != null) {
+            trace.close();
+        }
+    }
+
+    /**
+     * Compare two configurations on paired episodes. Both configurations play each episode against
+     * a seeded simulator with the same seed, so they see the same stream of move outcomes and
+     * most of the environment's randomness cancels out of their difference. With a policy cache,
+     * each configuration has its own, so neither replays decisions the other made.
+     *
+     * @param ps the problem information
+     * @param inputFile the problem input file
+     * @param startState the start state of every episode
+     * @param count the number of episode pairs
+     * @param timeLimit the time limit per step of the planners
+     * @param configA the settings of the first configuration
+     * @param configB the settings of the second configuration
+     *
+     * @throws IOException if a planner can't be created
+     */
+    private static void comparePaired(ProblemSpec ps, String inputFile, State startState,
+                                      int count, int timeLimit, String configA, String configB)
+            throws IOException {
+        long seed = Long.getLong(PAIRED_SEED_PROPERTY, 1);
+
+        try (PlannerSession plannerA = openConfigured(ps, inputFile, CONFIG_A, configA);
+             PlannerSession plannerB = openConfigured(ps, inputFile, CONFIG_B, configB)) {
+            double[] successDifferences = new double[count];
+            List<Double> stepDifferences = new ArrayList<>();
+            int successesA = 0;
+            int successesB = 0;
+
+            for (int i = 0; i < count; i++) {
+                int stepsA = simulateSeeded(ps, plannerA, startState, seed + i, timeLimit);
+                int stepsB = simulateSeeded(ps, plannerB, startState, seed + i, timeLimit);
+
+                successesA += stepsA >= 0 ? 1 : 0;
+                successesB += stepsB >= 0 ? 1 : 0;
+                successDifferences[i] = (stepsB >= 0 ? 1 : 0) - (stepsA >= 0 ? 1 : 0);
+
+                if (stepsA >= 0 && stepsB >= 0) {
+                    stepDifferences.add((double) (stepsB - stepsA));
+                }
+
+                System.out.println("Pair " + (i + 1) + ": A " + describe(stepsA) + ", B " +
+                        describe(stepsB));
+            }
+
+            double[] steps = new double[stepDifferences.size()];
+
+            for (int i = 0; i < steps.length; i++) {
+                steps[i] = stepDifferences.get(i);
+            }
+
+            System.out.println("Final results:");
+            System.out.println("A (" + configA + "): " + successesA + " successful out of " +
+                    count);
+            System.out.println("B (" + configB + "): " + successesB + " successful out of " +
+                    count);
+            System.out.println("Success rate difference (B - A): " +
+                    confidenceInterval(successDifferences));
+            System.out.println("Steps difference (B - A) when both succeeded: " +
+                    confidenceInterval(steps));
+        }
+    }
+
+    /**
+     * Create a planner session with some properties set, restoring them afterwards. A policy cache
+     * directory which the settings don't change gets a subdirectory for the configuration.
+     *
+     * @param ps the problem information
+     * @param inputFile the problem input file
+     * @param name the configuration's name
+     * @param config comma separated property=value settings
+     *
+     * @return the planner session
+     *
+     * @throws IOException if the planner can't be created
+     */
+    private static PlannerSession openConfigured(ProblemSpec ps, String inputFile, String name,
+                                                 String config) throws IOException {
+        Map<String, String> previous = new HashMap<>();
+        String policyCache = System.getProperty(POLICY_CACHE_PROPERTY);
+
+        if (policyCache != null) {
+            previous.put(POLICY_CACHE_PROPERTY, policyCache);
+            System.setProperty(POLICY_CACHE_PROPERTY, Paths.get(policyCache, name).toString());
+        }
+
+        for (String setting : config.split(",")) {
+            if (setting.isEmpty()) {
+                continue;
+            }
+
+            String[] keyValue = setting.split("=", 2);
+            previous.putIfAbsent(keyValue[0], System.getProperty(keyValue[0]));
+            System.setProperty(keyValue[0], keyValue.length > 1 ? keyValue[1] : "");
+        }
+
+        try {
+            return new PlannerSession(ps, inputFile);
+        } finally {
+            for (Map.Entry<String, String> entry : previous.entrySet()) {
+                if (entry.getValue() == null) {
+                    System.clearProperty(entry.getKey());
+                } else {
+                    System.setProperty(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Play an episode against a seeded simulator
+     *
+     * @param ps the problem information
+     * @param planner the planner
+     * @param startState the start state
+     * @param seed the seed of the simulator's move samples
+     * @param timeLimit the time limit per step of the planner
+     *
+     * @return the steps taken to reach the goal, or -1 if the episode failed
+     */
+    private static int simulateSeeded(ProblemSpec ps, Planner planner, State startState,
+                                      long seed, int timeLimit) {
+        FromStateSimulator sim = new FromStateSimulator(ps);
+        sim.setRandom(new Random(seed));
+        sim.setStartState(startState, 0);
+
+        State state = startState;
+        int stepsDone = 0;
+        int budget = stepBudget(timeLimit);
+        Action action = null;
+        planner.startEpisode(state);
+
+        while (true) {
+            if (sim.getSteps() > ps.getMaxT()) {
+                // Out of time steps, the support code simulator would refuse the next action, so
+                // no decision is made for it
+                planner.observe(action, null);
+                return -1;
+            }
+
+            action = planner.decide(state, stepsDone, budget);
+            int status = sim.step(action);
+            state = sim.getCurrentState();
+            planner.observe(action, state);
+
+            if (status == FromStateSimulator.WIN) {
+                return sim.getSteps();
+            }
+
+            stepsDone++;
+        }
+    }
+
+    /**
+     * Describe the result of an episode
+     *
+     * @param steps the steps taken, or -1 if the episode failed
+     *
+     * @return the description
+     */
+    private static String describe(int steps) {
+        return steps >= 0 ? "succeeded in " + steps + " steps" : "failed";
+    }
+
+    /**
+     * Describe the mean of some paired differences with its 95% confidence interval
+     *
+     * @param differences the differences
+     *
+     * @return the mean and interval
+     */
+    private static String confidenceInterval(double[] differences) {
+        int n = differences.length;
+
+        if (n < 2) {
+            return "not enough pairs";
+        }
+
+        double mean = 0;
+
+        for (double difference : differences) {
+            mean += difference;
+        }
+
+        mean /= n;
+        double variance = 0;
+
+        for (double difference : differences) {
+            variance += (difference - mean) * (difference - mean);
+        }
+
+        double halfWidth = Z_95 * Math.sqrt(variance / (n - 1) / n);
+
+        return String.format("%.4f (95%% CI %.4f to %.4f, %d pairs)", mean, mean - halfWidth,
+                mean + halfWidth, n);
     }
 }
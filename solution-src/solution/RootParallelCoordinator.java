@@ -0,0 +1,420 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.State;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Root parallel search spread over several worker processes. Each step, every worker runs an
+ * independent MCTS search from the current state, and the visits and rewards of the root actions
+ * are summed to choose the action.
+ */
+public class RootParallelCoordinator {
+    /**
+     * How long to keep retrying the connection to a newly started worker
+     */
+    private static final int CONNECT_TIMEOUT = 30000;
+
+    /**
+     * Delay between connection attempts to a newly started worker
+     */
+    private static final int CONNECT_RETRY_DELAY = 100;
+
+    /**
+     * How long past the search time limit to wait for the workers' replies, in millis
+     */
+    private static final int REPLY_GRACE = 20;
+
+    /**
+     * Nanoseconds in a millisecond
+     */
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    /**
+     * A connection to a worker. A connection which fails or replies late is closed, and opened
+     * again before the next search.
+     */
+    private static class WorkerConnection {
+        /**
+         * The worker host
+         */
+        private String host;
+
+        /**
+         * The worker port
+         */
+        private int port;
+
+        /**
+         * The socket connected to the worker, or null while disconnected
+         */
+        private Socket socket;
+
+        /**
+         * Stream of responses from the worker
+         */
+        private DataInputStream in;
+
+        /**
+         * Stream of requests to the worker
+         */
+        private DataOutputStream out;
+
+        /**
+         * Create a disconnected connection to a worker
+         *
+         * @param host the worker host
+         * @param port the worker port
+         */
+        private WorkerConnection(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Connect to the worker, retrying while it starts up
+         *
+         * @param timeout how long to keep retrying, in millis
+         *
+         * @throws IOException if the worker can't be connected to in time
+         */
+        private void open(int timeout) throws IOException {
+            long deadline = System.currentTimeMillis() + timeout;
+
+            while (true) {
+                try {
+                    socket = new Socket(InetAddress.getByName(host), port);
+                    socket.setTcpNoDelay(true);
+                    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    out = new DataOutputStream(new BufferedOutputStream(
+                            socket.getOutputStream()));
+                    return;
+                } catch (IOException e) {
+                    close();
+
+                    if (System.currentTimeMillis() >= deadline) {
+                        throw e;
+                    }
+
+                    try {
+                        Thread.sleep(CONNECT_RETRY_DELAY);
+                    } catch (InterruptedException interrupted) {
+                        throw new IOException(interrupted);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Close the socket, abandoning any exchange in progress on it
+         */
+        private void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Closed anyway
+                }
+            }
+
+            socket = null;
+        }
+    }
+
+    /**
+     * Path of the problem input file, which the workers load themselves
+     */
+    private String problemFile;
+
+    /**
+     * Connections to the workers
+     */
+    private List<WorkerConnection> workers;
+
+    /**
+     * Worker processes started by this coordinator
+     */
+    private List<Process> processes;
+
+    /**
+     * Runs the requests to the workers concurrently
+     */
+    private ExecutorService executor;
+
+    /**
+     * Create a coordinator with no connections or worker processes yet
+     *
+     * @param problemFile path of the problem input file
+     */
+    private RootParallelCoordinator(String problemFile) {
+        this.problemFile = new File(problemFile).getAbsolutePath();
+
+        workers = new ArrayList<>();
+        processes = new ArrayList<>();
+    }
+
+    /**
+     * Connect to workers which are already running
+     *
+     * @param problemFile path of the problem input file
+     * @param addresses worker addresses, as host:port
+     *
+     * @throws IOException if a worker can't be connected to
+     */
+    public RootParallelCoordinator(String problemFile, List<String> addresses)
+            throws IOException {
+        this(problemFile);
+
+        for (String address : addresses) {
+            String[] hostPort = address.split(":");
+            workers.add(connect(hostPort[0], Integer.parseInt(hostPort[1]), 0));
+        }
+
+        executor = Executors.newFixedThreadPool(workers.size());
+    }
+
+    /**
+     * Start worker processes on this machine and connect to them. The workers use the same
+     * class path as this process and inherit its mcts.* system properties.
+     *
+     * @param problemFile path of the problem input file
+     * @param count number of workers to start
+     * @param basePort port of the first worker, the others use the following ports
+     *
+     * @return the coordinator
+     *
+     * @throws IOException if a worker can't be started or connected to
+     */
+    public static RootParallelCoordinator startLocalWorkers(String problemFile, int count,
+                                                            int basePort) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" +
+                File.separator + "java";
+        RootParallelCoordinator coordinator = new RootParallelCoordinator(problemFile);
+
+        try {
+            for (int i = 0; i < count; i++) {
+                List<String> command = new ArrayList<>();
+                command.add(java);
+
+                for (String property : System.getProperties().stringPropertyNames()) {
+                    if (property.startsWith("mcts.")) {
+                        command.add("-D" + property + "=" + System.getProperty(property));
+                    }
+                }
+
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(Main.class.getName());
+                command.add(Main.WORKER_ARGUMENT);
+                command.add(Integer.toString(basePort + i));
+
+                coordinator.processes.add(new ProcessBuilder(command).inheritIO().start());
+            }
+
+            for (int i = 0; i < count; i++) {
+                coordinator.workers.add(connect("localhost", basePort + i, CONNECT_TIMEOUT));
+            }
+        } catch (IOException e) {
+            for (Process process : coordinator.processes) {
+                process.destroy();
+            }
+
+            throw e;
+        }
+
+        coordinator.executor = Executors.newFixedThreadPool(count);
+        return coordinator;
+    }
+
+    /**
+     * Run a search on every worker and choose the root action with the best mean reward over
+     * all the workers' visits. Workers which fail, or don't reply by shortly after the time limit,
+     * are left out of the merge and reconnected for the next search.
+     *
+     * @param ps the problem information
+     * @param state the current state
+     * @param stepsDone the number of steps done so far
+     * @param timeLimit the time limit of each worker's search
+     *
+     * @return the best action, or null if every worker failed
+     */
+    public Action getBestAction(ProblemSpec ps, State state, int stepsDone, int timeLimit) {
+        long deadline = System.nanoTime() + (timeLimit + REPLY_GRACE) * NANOS_PER_MILLI;
+        ArrayList<Action> actions = MCTS.makeValidActionsDiscretized(ps);
+        long signature = MCTS.actionsSignature(actions);
+        List<WorkerConnection> searching = new ArrayList<>();
+        List<Future<double[][]>> results = new ArrayList<>();
+
+        for (WorkerConnection worker : workers) {
+            if (worker.socket == null) {
+                try {
+                    worker.open(0);
+                } catch (IOException e) {
+                    System.out.println("Search worker unavailable: " + e.getMessage());
+                    continue;
+                }
+            }
+
+            searching.add(worker);
+            results.add(executor.submit(() -> search(worker, state, stepsDone, timeLimit,
+                    actions.size(), signature)));
+        }
+
+        int[] visits = new int[actions.size()];
+        double[] rewards = new double[actions.size()];
+        boolean anyResult = false;
+
+        for (int i = 0; i < results.size(); i++) {
+            Future<double[][]> result = results.get(i);
+
+            try {
+                double[][] stats = result.get(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+
+                for (int a = 0; a < actions.size(); a++) {
+                    visits[a] += (int) stats[0][a];
+                    rewards[a] += stats[1][a];
+                }
+
+                anyResult = true;
+            } catch (TimeoutException e) {
+                // Closing the socket abandons the late reply, so it can't be read as the reply to
+                // the next search
+                System.out.println("Search worker timed out");
+                result.cancel(true);
+                searching.get(i).close();
+            } catch (ExecutionException e) {
+                System.out.println("Search worker failed: " + e.getCause());
+                searching.get(i).close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                searching.get(i).close();
+            }
+        }
+
+        if (!anyResult) {
+            return null;
+        }
+
+        int best = -1;
+
+        for (int a = 0; a < actions.size(); a++) {
+            if (visits[a] > 0 && (best < 0 ||
+                    rewards[a] / visits[a] > rewards[best] / visits[best])) {
+                best = a;
+            }
+        }
+
+        return best < 0 ? null : actions.get(best);
+    }
+
+    /**
+     * Shut down the workers started by this coordinator and close all the connections
+     */
+    public void close() {
+        for (WorkerConnection worker : workers) {
+            try {
+                if (!processes.isEmpty()) {
+                    if (worker.socket == null) {
+                        worker.open(0);
+                    }
+
+                    worker.out.writeInt(SearchWorker.SHUTDOWN);
+                    worker.out.flush();
+                }
+            } catch (IOException e) {
+                // The worker has already gone
+            }
+
+            worker.close();
+        }
+
+        for (Process process : processes) {
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                process.destroy();
+            }
+        }
+
+        executor.shutdown();
+    }
+
+    /**
+     * Send a search request to a worker and read its root action statistics
+     *
+     * @param worker the connection to the worker
+     * @param state the current state
+     * @param stepsDone the number of steps done so far
+     * @param timeLimit the time limit of the search
+     * @param actionCount the size of the coordinator's action list
+     * @param signature the signature of the coordinator's action list
+     *
+     * @return the visits (index 0) and total reward (index 1) of each root action
+     *
+     * @throws IOException if there is an error communicating with the worker, or it uses a
+     * different action list
+     */
+    private double[][] search(WorkerConnection worker, State state, int stepsDone,
+                              int timeLimit, int actionCount, long signature)
+            throws IOException {
+        DataOutputStream out = worker.out;
+        out.writeInt(SearchWorker.SEARCH);
+        out.writeUTF(problemFile);
+        StateCodec.write(out, state);
+        out.writeInt(stepsDone);
+        out.writeInt(timeLimit);
+        out.flush();
+
+        DataInputStream in = worker.in;
+
+        if (in.readInt() != actionCount || in.readLong() != signature) {
+            throw new IOException("The worker's action list doesn't match the coordinator's, " +
+                    "check mcts.fuelIntervals on both");
+        }
+
+        double[][] stats = new double[2][actionCount];
+
+        for (int a = 0; a < actionCount; a++) {
+            stats[0][a] = in.readInt();
+            stats[1][a] = in.readDouble();
+        }
+
+        return stats;
+    }
+
+    /**
+     * Connect to a worker, retrying while it starts up
+     *
+     * @param host the worker host
+     * @param port the worker port
+     * @param timeout how long to keep retrying, in millis
+     *
+     * @return the connection
+     *
+     * @throws IOException if the worker can't be connected to in time
+     */
+    private static WorkerConnection connect(String host, int port, int timeout)
+            throws IOException {
+        WorkerConnection worker = new WorkerConnection(host, port);
+        worker.open(timeout);
+        return worker;
+    }
+}
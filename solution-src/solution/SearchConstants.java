@@ -0,0 +1,217 @@
+package solution;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * The tunable constants of the search: the playout reward shape, the UCT exploration constant and
+ * the fuel discretization of the actions. Immutable, so differently configured searches can run
+ * side by side, e.g. in the tuner.
+ */
+public class SearchConstants {
+    /**
+     * Default reward for a playout reaching the goal
+     */
+    static final double DEFAULT_WIN_BONUS = 1;
+
+    /**
+     * Default multiplier of the reward for the fraction of the time steps left on reaching the goal
+     */
+    static final double DEFAULT_SPEED_MULTIPLIER = 1;
+
+    /**
+     * Default multiplier of the reward for the fraction of the track covered by a failed playout
+     */
+    static final double DEFAULT_DISTANCE_MULTIPLIER = 1;
+
+    /**
+     * Default UCT exploration constant, the classic sqrt(2)
+     */
+    static final double DEFAULT_EXPLORATION = Math.sqrt(2);
+
+    /**
+     * Default number of fuel amounts the fuel actions are discretized into
+     */
+    static final int DEFAULT_FUEL_INTERVALS = 6;
+
+    /**
+     * The constants the search used before they were configurable
+     */
+    static final SearchConstants DEFAULT = new SearchConstants(DEFAULT_WIN_BONUS,
+            DEFAULT_SPEED_MULTIPLIER, DEFAULT_DISTANCE_MULTIPLIER, DEFAULT_EXPLORATION,
+            DEFAULT_FUEL_INTERVALS);
+
+    /**
+     * Reward for a playout reaching the goal
+     */
+    private final double winBonus;
+
+    /**
+     * Multiplier of the reward for the fraction of the time steps left on reaching the goal
+     */
+    private final double speedMultiplier;
+
+    /**
+     * Multiplier of the reward for the fraction of the track covered by a failed playout
+     */
+    private final double distanceMultiplier;
+
+    /**
+     * UCT exploration constant
+     */
+    private final double exploration;
+
+    /**
+     * Number of fuel amounts the fuel actions are discretized into
+     */
+    private final int fuelIntervals;
+
+    /**
+     * Constructor
+     *
+     * @param winBonus reward for a playout reaching the goal
+     * @param speedMultiplier multiplier of the reward for the fraction of the time steps left on
+     * reaching the goal
+     * @param distanceMultiplier multiplier of the reward for the fraction of the track covered by
+     * a failed playout
+     * @param exploration UCT exploration constant
+     * @param fuelIntervals number of fuel amounts the fuel actions are discretized into
+     */
+    public SearchConstants(double winBonus, double speedMultiplier, double distanceMultiplier,
+                           double exploration, int fuelIntervals) {
+        if (fuelIntervals < 1) {
+            throw new IllegalArgumentException("fuelIntervals must be positive");
+        }
+
+        this.winBonus = winBonus;
+        this.speedMultiplier = speedMultiplier;
+        this.distanceMultiplier = distanceMultiplier;
+        this.exploration = exploration;
+        this.fuelIntervals = fuelIntervals;
+    }
+
+    /**
+     * Read the constants from the system properties, over those in the file named by
+     * mcts.constants if it is set, using the defaults for those not set in either
+     *
+     * @return the constants
+     */
+    static SearchConstants fromProperties() {
+        Properties properties = new Properties();
+        String file = System.getProperty(Main.CONSTANTS_FILE_PROPERTY);
+
+        if (file != null) {
+            try (InputStream in = Files.newInputStream(Paths.get(file))) {
+                properties.load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        properties.putAll(System.getProperties());
+        return fromProperties(properties);
+    }
+
+    /**
+     * Read the constants from properties, using the defaults for those not set
+     *
+     * @param properties the properties
+     *
+     * @return the constants
+     */
+    static SearchConstants fromProperties(Properties properties) {
+        return new SearchConstants(
+                doubleProperty(properties, Main.WIN_BONUS_PROPERTY, DEFAULT_WIN_BONUS),
+                doubleProperty(properties, Main.SPEED_MULTIPLIER_PROPERTY,
+                        DEFAULT_SPEED_MULTIPLIER),
+                doubleProperty(properties, Main.DISTANCE_MULTIPLIER_PROPERTY,
+                        DEFAULT_DISTANCE_MULTIPLIER),
+                doubleProperty(properties, Main.EXPLORATION_PROPERTY, DEFAULT_EXPLORATION),
+                Integer.parseInt(properties.getProperty(Main.FUEL_INTERVALS_PROPERTY,
+                        Integer.toString(DEFAULT_FUEL_INTERVALS))));
+    }
+
+    /**
+     * Read a double property
+     *
+     * @param properties the properties
+     * @param name the property name
+     * @param defaultValue the value if the property isn't set
+     *
+     * @return the value
+     */
+    private static double doubleProperty(Properties properties, String name,
+                                         double defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Write the constants as properties, which fromProperties() reads back
+     *
+     * @return the properties
+     */
+    Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty(Main.WIN_BONUS_PROPERTY, Double.toString(winBonus));
+        properties.setProperty(Main.SPEED_MULTIPLIER_PROPERTY, Double.toString(speedMultiplier));
+        properties.setProperty(Main.DISTANCE_MULTIPLIER_PROPERTY,
+                Double.toString(distanceMultiplier));
+        properties.setProperty(Main.EXPLORATION_PROPERTY, Double.toString(exploration));
+        properties.setProperty(Main.FUEL_INTERVALS_PROPERTY, Integer.toString(fuelIntervals));
+        return properties;
+    }
+
+    /**
+     * Reward of a playout which reached the goal
+     *
+     * @param steps the steps done on reaching the goal
+     * @param maxT the maximum number of steps
+     *
+     * @return the reward
+     */
+    public double winReward(double steps, int maxT) {
+        return winBonus + speedMultiplier * (maxT - steps) / (double) maxT;
+    }
+
+    /**
+     * Reward of a playout which ran out of time steps
+     *
+     * @param pos the position reached
+     * @param n the track length
+     *
+     * @return the reward
+     */
+    public double lossReward(int pos, int n) {
+        return distanceMultiplier * pos / (double) n;
+    }
+
+    /**
+     * Get the UCT exploration constant
+     *
+     * @return the exploration constant
+     */
+    public double getExploration() {
+        return exploration;
+    }
+
+    /**
+     * Get the number of fuel amounts the fuel actions are discretized into
+     *
+     * @return the number of fuel intervals
+     */
+    public int getFuelIntervals() {
+        return fuelIntervals;
+    }
+
+    @Override
+    public String toString() {
+        return "winBonus=" + winBonus + ", speedMultiplier=" + speedMultiplier +
+                ", distanceMultiplier=" + distanceMultiplier + ", exploration=" + exploration +
+                ", fuelIntervals=" + fuelIntervals;
+    }
+}
@@ -0,0 +1,194 @@
+package solution;
+
+/**
+ * Custom Java Flight Recorder events emitted by the planner. They cost almost nothing unless a
+ * recording with them enabled is running, e.g. java -XX:StartFlightRecording=filename=run.jfr.
+ * Playout events are additionally sampled, see MCTS.setPlayoutEventSampling().
+ *
+ * jdk.jfr only exists on JDK 11+ and 8u262+, so the search doesn't use it directly. The events
+ * here are plain objects whose begin() and commit() do nothing. When jdk.jfr and the flight
+ * recorder events in solution-jfr (JfrSearchEvents) are both available, the factory methods
+ * return versions of them which record, otherwise they return these.
+ */
+public class SearchEvents {
+    /**
+     * Class providing the flight recorder versions of the events, compiled from solution-jfr
+     */
+    private static final String JFR_EVENTS_CLASS = "solution.JfrSearchEvents";
+
+    /**
+     * Creates the recording versions of the events, or null if flight recorder isn't available
+     */
+    private static final Factory FACTORY = loadFactory();
+
+    /**
+     * Creates events which are recorded by flight recorder
+     */
+    interface Factory {
+        /**
+         * Create a decision event
+         *
+         * @return the event
+         */
+        DecisionEvent decision();
+
+        /**
+         * Create a playout event
+         *
+         * @return the event
+         */
+        PlayoutEvent playout();
+
+        /**
+         * Create a search phase event
+         *
+         * @return the event
+         */
+        SearchPhaseEvent searchPhase();
+    }
+
+    /**
+     * A single decision made by a planner session
+     */
+    static class DecisionEvent {
+        /**
+         * Steps done before the decision
+         */
+        int stepsDone;
+
+        /**
+         * The decision's budget, in millis
+         */
+        int budget;
+
+        /**
+         * Search iterations run for the decision
+         */
+        int iterations;
+
+        /**
+         * Live tree nodes at the end of the decision
+         */
+        int liveNodes;
+
+        /**
+         * What chose the action: search, solver, cache or workers
+         */
+        String source;
+
+        /**
+         * Start timing the event
+         */
+        void begin() {
+            // Not recorded
+        }
+
+        /**
+         * Finish the event and record it
+         */
+        void commit() {
+            // Not recorded
+        }
+    }
+
+    /**
+     * A single random playout
+     */
+    static class PlayoutEvent {
+        /**
+         * Number of actions simulated
+         */
+        int length;
+
+        /**
+         * How the playout ended: win, loss, horizon, cached, evaluated or abandoned
+         */
+        String outcome;
+
+        /**
+         * Start timing the event
+         */
+        void begin() {
+            // Not recorded
+        }
+
+        /**
+         * Finish the event and record it
+         */
+        void commit() {
+            // Not recorded
+        }
+    }
+
+    /**
+     * A phase of the search which allocates or frees a lot of memory
+     */
+    static class SearchPhaseEvent {
+        /**
+         * The phase
+         */
+        String phase;
+
+        /**
+         * Number of tree nodes or states involved
+         */
+        int nodes;
+
+        /**
+         * Start timing the event
+         */
+        void begin() {
+            // Not recorded
+        }
+
+        /**
+         * Finish the event and record it
+         */
+        void commit() {
+            // Not recorded
+        }
+    }
+
+    /**
+     * Create a decision event
+     *
+     * @return the event, recorded if flight recorder is available
+     */
+    static DecisionEvent decision() {
+        return FACTORY != null ? FACTORY.decision() : new DecisionEvent();
+    }
+
+    /**
+     * Create a playout event
+     *
+     * @return the event, recorded if flight recorder is available
+     */
+    static PlayoutEvent playout() {
+        return FACTORY != null ? FACTORY.playout() : new PlayoutEvent();
+    }
+
+    /**
+     * Create a search phase event
+     *
+     * @return the event, recorded if flight recorder is available
+     */
+    static SearchPhaseEvent searchPhase() {
+        return FACTORY != null ? FACTORY.searchPhase() : new SearchPhaseEvent();
+    }
+
+    /**
+     * Load the flight recorder events, if both jdk.jfr and JfrSearchEvents are available
+     *
+     * @return the factory of recording events, or null if they aren't available
+     */
+    private static Factory loadFactory() {
+        try {
+            Class.forName("jdk.jfr.Event");
+
+            return (Factory) Class.forName(JFR_EVENTS_CLASS).getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package solution;
+
+import problem.Action;
+import simulator.State;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * A search running in the background. The caller can poll the best action found so far at any
+ * moment, wait on a future which completes at the deadline or once the search has converged, or
+ * stop the search early and take the best action found so far. Several handles, each with its
+ * own MCTS object, can run at once.
+ *
+ * The search runs in short slices on one thread. After every slice it publishes an estimate (the
+ * best action, its confidence and the iterations run), which is what polling returns, so polling
+ * never touches the tree while it is being searched.
+ */
+public class SearchHandle {
+    /**
+     * Length of a search slice, in nanos. Bounds how stale a polled estimate is and how long
+     * cancel() takes to stop the search.
+     */
+    private static final long SLICE_NANOS = 2000000;
+
+    /**
+     * Fewest iterations a search needs before it can be considered converged
+     */
+    static final int MIN_CONVERGENCE_ITERATIONS = 1000;
+
+    /**
+     * The search, which must not be used by anything else until the handle is done
+     */
+    private MCTS mcts;
+
+    /**
+     * Confidence at which the search is considered converged and stops early, or 0 to always run
+     * until the deadline
+     */
+    private double convergence;
+
+    /**
+     * The latest published estimate
+     */
+    private volatile Estimate estimate;
+
+    /**
+     * Set to stop the search after its current slice
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Set by the search thread once it has stopped touching the tree
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Completed with the chosen action when the search stops
+     */
+    private CompletableFuture<Action> result = new CompletableFuture<>();
+
+    /**
+     * The best action found at some point of the search
+     */
+    public static class Estimate {
+        /**
+         * The best action found
+         */
+        private final Action action;
+
+        /**
+         * Share of the root visits which went to the best action
+         */
+        private final double confidence;
+
+        /**
+         * Iterations run when the estimate was made
+         */
+        private final int iterations;
+
+        /**
+         * Constructor
+         *
+         * @param action the best action found
+         * @param confidence share of the root visits which went to the best action
+         * @param iterations iterations run when the estimate was made
+         */
+        Estimate(Action action, double confidence, int iterations) {
+            this.action = action;
+            this.confidence = confidence;
+            this.iterations = iterations;
+        }
+
+        /**
+         * Get the best action found
+         *
+         * @return the action, or null before the first slice has finished
+         */
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * Get the share of the root visits which went to the best action
+         *
+         * @return the confidence, between 0 and 1
+         */
+        public double getConfidence() {
+            return confidence;
+        }
+
+        /**
+         * Get the number of iterations run when the estimate was made
+         *
+         * @return the iterations
+         */
+        public int getIterations() {
+            return iterations;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param mcts the search
+     * @param convergence confidence at which to stop early, or 0 to run until the deadline
+     */
+    private SearchHandle(MCTS mcts, double convergence) {
+        this.mcts = mcts;
+        this.convergence = convergence;
+
+        estimate = new Estimate(null, 0, 0);
+
+        // Completing or cancelling the result from outside stops the search too
+        result.whenComplete((action, e) -> cancelled = true);
+    }
+
+    /**
+     * Start a search on its own thread
+     *
+     * @param mcts the search, which must not be used by anything else until the handle is done
+     * @param state the state to search from
+     * @param stepsDone the number of steps done so far
+     * @param budget the time to search for, in millis
+     * @param convergence confidence at which to stop early, or 0 to run until the deadline
+     *
+     * @return the handle of the running search
+     */
+    public static SearchHandle start(MCTS mcts, State state, int stepsDone, int budget,
+                                     double convergence) {
+        return start(mcts, state, stepsDone, budget, convergence, task -> {
+            Thread thread = new Thread(task, "search");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * Start a search on an executor
+     *
+     * @param mcts the search, which must not be used by anything else until the handle is done
+     * @param state the state to search from
+     * @param stepsDone the number of steps done so far
+     * @param budget the time to search for, in millis
+     * @param convergence confidence at which to stop early, or 0 to run until the deadline
+     * @param executor runs the search, which occupies one of its threads until it stops
+     *
+     * @return the handle of the running search
+     */
+    public static SearchHandle start(MCTS mcts, State state, int stepsDone, int budget,
+                                     double convergence, Executor executor) {
+        SearchHandle handle = new SearchHandle(mcts, convergence);
+
+        // The clock starts now, not when the executor gets to the search
+        mcts.reset(state, stepsDone, budget);
+        mcts.beginSearch();
+        executor.execute(handle::run);
+
+        return handle;
+    }
+
+    /**
+     * Run slices until the deadline, convergence or cancellation
+     */
+    private void run() {
+        try {
+            while (true) {
+                boolean finished = mcts.searchUntil(System.nanoTime() + SLICE_NANOS);
+                Estimate latest = new Estimate(mcts.getSearchResult(),
+                        mcts.getResultConfidence(), mcts.getIterations());
+                estimate = latest;
+
+                if (finished || cancelled || (convergence > 0 &&
+                        latest.iterations >= MIN_CONVERGENCE_ITERATIONS &&
+                        latest.confidence >= convergence)) {
+                    result.complete(latest.action);
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        } finally {
+            stopped = true;
+        }
+    }
+
+    /**
+     * Get the latest estimate of the best action, without waiting
+     *
+     * @return the estimate
+     */
+    public Estimate poll() {
+        return estimate;
+    }
+
+    /**
+     * Get the future completed with the chosen action when the search stops, at its deadline, on
+     * convergence or after cancel(). Cancelling or completing the future stops the search after
+     * its current slice.
+     *
+     * @return the result
+     */
+    public CompletableFuture<Action> getResult() {
+        return result;
+    }
+
+    /**
+     * Stop the search after its current slice. The result completes with the best action found
+     * so far.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Check whether the search has stopped, after which its MCTS object can be used again. The
+     * result may complete a slice earlier when it is cancelled from outside.
+     *
+     * @return whether the search thread has stopped
+     */
+    public boolean isDone() {
+        return stopped;
+    }
+}
@@ -0,0 +1,127 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.State;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Worker process for root parallel search. Listens on a local port for search requests from a
+ * RootParallelCoordinator, runs MCTS for each one and replies with the visits and total reward of
+ * every root action, preceded by the size and signature of its action list so the coordinator can
+ * check it indexes the same actions. Macro-actions are counted as their first move.
+ */
+public class SearchWorker {
+    /**
+     * Request to run a search
+     */
+    static final int SEARCH = 1;
+
+    /**
+     * Request to shut the worker down
+     */
+    static final int SHUTDOWN = 0;
+
+    /**
+     * A search for each problem loaded so far, keyed by input file path. Each is reset and reused
+     * for every request on its problem.
+     */
+    private HashMap<String, MCTS> searches = new HashMap<>();
+
+    /**
+     * Serve search requests on a local port until a shutdown request is received. Requests are
+     * handled one at a time.
+     *
+     * @param port the port to listen on
+     *
+     * @throws IOException if the port can't be opened
+     */
+    public void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+            System.out.println("Search worker listening on port " + port);
+
+            while (true) {
+                try (Socket socket = server.accept()) {
+                    if (!handleConnection(socket)) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Search worker connection failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle the requests of a single coordinator connection
+     *
+     * @param socket the connection
+     *
+     * @return false if a shutdown request was received
+     *
+     * @throws IOException if there is an error communicating with the coordinator
+     */
+    private boolean handleConnection(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream()));
+
+        while (true) {
+            int request;
+
+            try {
+                request = in.readInt();
+            } catch (EOFException e) {
+                // The coordinator closed the connection
+                return true;
+            }
+
+            if (request == SHUTDOWN) {
+                return false;
+            }
+
+            String problemFile = in.readUTF();
+            State state = StateCodec.read(in);
+            int stepsDone = in.readInt();
+            int timeLimit = in.readInt();
+
+            MCTS mcts = searches.get(problemFile);
+
+            if (mcts == null) {
+                ProblemSpec ps = new ProblemSpec(problemFile);
+                mcts = new MCTS(ps);
+                Main.configureSearch(ps, mcts);
+                searches.put(problemFile, mcts);
+            }
+
+            mcts.reset(state, stepsDone, timeLimit);
+            mcts.getBestAction();
+
+            // Reply with the statistics of every root action, in action list order, including
+            // the visits spent on macro-actions
+            ArrayList<Action> actions = mcts.getValidActions();
+            double[][] stats = mcts.getRootActionStats();
+            out.writeInt(actions.size());
+            out.writeLong(MCTS.actionsSignature(actions));
+
+            for (int a = 0; a < actions.size(); a++) {
+                out.writeInt((int) stats[0][a]);
+                out.writeDouble(stats[1][a]);
+            }
+
+            out.flush();
+        }
+    }
+}
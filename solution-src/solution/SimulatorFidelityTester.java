@@ -0,0 +1,523 @@
+package solution;
+
+import problem.Action;
+import problem.ActionType;
+import problem.ProblemSpec;
+import simulator.Simulator;
+import simulator.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks that FromStateSimulator, the batch rollout engine or any other StepSimulator behaves like
+ * the support code simulator. The support code simulator is driven through random episodes, and
+ * from every state it visits the candidate is stepped with the same action, if it supports it:
+ *
+ * - deterministic actions (everything but A1) must give exactly the same next state and number of
+ *   steps used
+ * - A1 outcomes (position, steps and fuel change) are counted per context (terrain, car, driver,
+ *   tires, pressure, enough fuel, distance from the ends of the track) and the two simulators'
+ *   outcome distributions compared with a chi-square test of homogeneity
+ * - A1 step accounting (moved, stayed, slipped, broke down or an impossible step count) is counted
+ *   for both simulators and the two distributions compared the same way. A candidate may only
+ *   make impossible step counts if the support code does.
+ *
+ * Run it over the examples before rolling out any change to the simulators used by the search.
+ */
+public class SimulatorFidelityTester {
+    /**
+     * Significance level of the chi-square tests for a whole problem, divided between its contexts
+     */
+    private static final double SIGNIFICANCE = 0.001;
+
+    /**
+     * Default number of support code simulator steps per problem
+     */
+    private static final int DEFAULT_STEPS = 20000;
+
+    /**
+     * Number of candidate samples drawn from each state the support code simulator moved from,
+     * so the candidate's distributions are known more precisely than the reference's
+     */
+    private static final int CANDIDATE_SAMPLES = 10;
+
+    /**
+     * Fewest support code A1 samples a context needs to be tested
+     */
+    private static final int MIN_CONTEXT_SAMPLES = 50;
+
+    /**
+     * Outcomes expected fewer times than this (in either simulator) are merged for the chi-square
+     * test, which is unreliable on small expected counts
+     */
+    private static final double MIN_EXPECTED = 5;
+
+    /**
+     * Probability of choosing A1 when driving the simulators, the rest is split between the other
+     * actions
+     */
+    private static final double MOVE_PROBABILITY = 0.7;
+
+    /**
+     * Number of mismatches printed in full per problem
+     */
+    private static final int MAX_REPORTED = 10;
+
+    /**
+     * Furthest a single move can go backwards or forwards, beyond which the track ends don't affect
+     * the outcome
+     */
+    private static final int MAX_MOVE = 5;
+
+    /**
+     * Accounting class of an A1 whose step count isn't possible
+     */
+    private static final String INVALID_ACCOUNTING = "invalid";
+
+    /**
+     * Number of support code steps done per problem
+     */
+    private int steps;
+
+    /**
+     * Creates the simulator being checked for a problem
+     */
+    private Function<ProblemSpec, StepSimulator> candidateFactory;
+
+    /**
+     * Entry point of the program
+     *
+     * @param args command line arguments. An optional leading --batch checks the batch rollout
+     * engine instead of FromStateSimulator. The next argument is optionally the number of steps
+     * per problem, and any further arguments are the input files to check. All the inputs under
+     * examples are checked if none are given.
+     *
+     * @throws IOException if there is an error reading the inputs
+     */
+    public static void main(String[] args) throws IOException {
+        boolean batch = args.length > 0 && args[0].equals("--batch");
+        int first = batch ? 1 : 0;
+        int steps = args.length > first ? Integer.parseInt(args[first]) : DEFAULT_STEPS;
+        List<String> inputFiles = new ArrayList<>();
+
+        for (int i = first + 1; i < args.length; i++) {
+            inputFiles.add(args[i]);
+        }
+
+        if (inputFiles.isEmpty()) {
+            try (Stream<Path> paths = Files.walk(Paths.get("examples"))) {
+                inputFiles = paths.filter(p -> p.getFileName().toString().startsWith("input"))
+                        .map(Path::toString).sorted().collect(Collectors.toList());
+            }
+        }
+
+        SimulatorFidelityTester tester = new SimulatorFidelityTester(steps, batch ?
+                ps -> new BatchRolloutSimulator(ps, 1, SearchConstants.DEFAULT) :
+                FromStateSimulator::new);
+        boolean passed = true;
+
+        for (String inputFile : inputFiles) {
+            passed &= tester.check(inputFile);
+        }
+
+        System.out.println(passed ? "All problems passed" : "Fidelity check FAILED");
+
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param steps number of support code simulator steps per problem
+     * @param candidateFactory creates the simulator being checked for a problem
+     */
+    public SimulatorFidelityTester(int steps,
+                                   Function<ProblemSpec, StepSimulator> candidateFactory) {
+        this.steps = steps;
+        this.candidateFactory = candidateFactory;
+    }
+
+    /**
+     * Check the candidate simulator on one problem and print the results
+     *
+     * @param inputFile the problem input file
+     *
+     * @return whether the candidate passed
+     *
+     * @throws IOException if there is an error reading the input or writing the support code
+     * simulator's output
+     */
+    public boolean check(String inputFile) throws IOException {
+        ProblemSpec ps = new ProblemSpec(inputFile);
+
+        // The support code simulator always writes an output file
+        File output = File.createTempFile("fidelity", ".txt");
+        output.deleteOnExit();
+
+        Simulator reference = new Simulator(ps, output.getPath());
+        StepSimulator candidate = candidateFactory.apply(ps);
+        FromStateSimulator fuelTable = new FromStateSimulator(ps);
+
+        List<Action> moves = new ArrayList<>();
+        List<Action> others = new ArrayList<>();
+
+        for (Action action : MCTS.makeValidActionsDiscretized(ps)) {
+            if (action.getActionType() == ActionType.MOVE) {
+                moves.add(action);
+            } else {
+                others.add(action);
+            }
+        }
+
+        // Outcome counts of A1 per context, [0] from the support code and [1] from the candidate
+        Map<String, Map<String, int[]>> outcomeCounts = new HashMap<>();
+
+        // Step accounting counts of A1, [0] from the support code and [1] from the candidate
+        Map<String, int[]> accountingCounts = new HashMap<>();
+        int deterministicSteps = 0;
+        int skipped = 0;
+        int mismatches = 0;
+
+        State state = reference.reset();
+
+        for (int i = 0; i < steps; i++) {
+            boolean move = others.isEmpty() ||
+                    ThreadLocalRandom.current().nextDouble() < MOVE_PROBABILITY;
+            List<Action> choices = move ? moves : others;
+            Action action = choices.get(ThreadLocalRandom.current().nextInt(choices.size()));
+
+            int stepsBefore = reference.getSteps();
+            State next = reference.step(action);
+
+            if (next == null) {
+                // Out of time steps
+                state = reference.reset();
+                continue;
+            }
+
+            int stepsUsed = reference.getSteps() - stepsBefore;
+
+            if (!candidate.supports(action)) {
+                skipped++;
+            } else if (move) {
+                Map<String, int[]> counts = outcomeCounts.computeIfAbsent(
+                        context(ps, state, fuelTable), k -> new HashMap<>());
+                counts.computeIfAbsent(outcome(state, next, stepsUsed), k -> new int[2])[0]++;
+                accountingCounts.computeIfAbsent(accounting(ps, state, next, stepsUsed),
+                        k -> new int[2])[0]++;
+
+                for (int j = 0; j < CANDIDATE_SAMPLES; j++) {
+                    candidate.setStartState(state, stepsBefore);
+                    candidate.step(action);
+                    State candidateNext = candidate.getCurrentState();
+                    int candidateStepsUsed = candidate.getSteps() - stepsBefore;
+
+                    counts.computeIfAbsent(outcome(state, candidateNext, candidateStepsUsed),
+                            k -> new int[2])[1]++;
+                    accountingCounts.computeIfAbsent(accounting(ps, state, candidateNext,
+                            candidateStepsUsed), k -> new int[2])[1]++;
+                }
+            } else {
+                deterministicSteps++;
+                candidate.setStartState(state, stepsBefore);
+                candidate.step(action);
+                State candidateNext = candidate.getCurrentState();
+                int candidateStepsUsed = candidate.getSteps() - stepsBefore;
+
+                if (!candidateNext.toString().equals(next.toString()) ||
+                        candidateStepsUsed != stepsUsed) {
+                    if (mismatches++ < MAX_REPORTED) {
+                        System.out.println(action.getText() + " from " + state +
+                                ": expected " + next + " in " + stepsUsed + " steps, got " +
+                                candidateNext + " in " + candidateStepsUsed + " steps");
+                    }
+                }
+            }
+
+            state = reference.isGoalState(next) ? reference.reset() : next;
+        }
+
+        // Bonferroni correction over the contexts with enough samples to be tested
+        List<Map<String, int[]>> tested = new ArrayList<>();
+
+        for (Map<String, int[]> counts : outcomeCounts.values()) {
+            int samples = 0;
+
+            for (int[] count : counts.values()) {
+                samples += count[0];
+            }
+
+            if (samples >= MIN_CONTEXT_SAMPLES) {
+                tested.add(counts);
+            }
+        }
+
+        // The accounting test takes one share of the significance level too
+        double threshold = SIGNIFICANCE / (tested.size() + 1);
+        double minPValue = 1;
+        int rejected = 0;
+
+        for (Map<String, int[]> counts : tested) {
+            double pValue = homogeneityPValue(counts);
+            minPValue = Math.min(minPValue, pValue);
+
+            if (pValue < threshold) {
+                rejected++;
+            }
+        }
+
+        double accountingPValue = homogeneityPValue(accountingCounts);
+        int[] invalid = accountingCounts.getOrDefault(INVALID_ACCOUNTING, new int[2]);
+        boolean accountingPassed = accountingPValue >= threshold &&
+                (invalid[1] == 0 || invalid[0] > 0);
+
+        boolean passed = mismatches == 0 && rejected == 0 && accountingPassed;
+
+        System.out.println(inputFile + ": " + deterministicSteps + " deterministic steps, " +
+                mismatches + " mismatched, " + skipped + " unsupported, " + tested.size() +
+                " A1 contexts tested, " + rejected + " rejected (min p " + minPValue +
+                ", threshold " + threshold + "), A1 accounting " +
+                describeAccounting(accountingCounts) + " (p " + accountingPValue + "): " +
+                (passed ? "PASS" : "FAIL"));
+
+        return passed;
+    }
+
+    /**
+     * Describe the step accounting counts of both simulators
+     *
+     * @param accountingCounts the counts of each accounting class, [0] from the support code and
+     * [1] from the candidate
+     *
+     * @return the description
+     */
+    private static String describeAccounting(Map<String, int[]> accountingCounts) {
+        StringBuilder description = new StringBuilder();
+
+        for (Map.Entry<String, int[]> entry : new TreeMap<>(accountingCounts).entrySet()) {
+            description.append(description.length() == 0 ? "" : ", ").append(entry.getKey())
+                    .append(' ').append(entry.getValue()[0]).append('/')
+                    .append(entry.getValue()[1]);
+        }
+
+        return description.toString();
+    }
+
+    /**
+     * Describe everything the outcome distribution of A1 depends on in a state
+     *
+     * @param ps the problem spec
+     * @param state the state moved from
+     * @param simulator used to look up fuel consumption
+     *
+     * @return the context of the move
+     */
+    private static String context(ProblemSpec ps, State state, FromStateSimulator simulator) {
+        int terrainIndex = ps.getTerrainIndex(ps.getEnvironmentMap()[state.getPos() - 1]);
+        int fuelRequired = simulator.getFuelConsumption(terrainIndex, state.getCarType(),
+                state.getTirePressure());
+
+        return terrainIndex + "|" + state.getCarType() + "|" + state.getDriver() + "|" +
+                state.getTireModel() + "|" + state.getTirePressure() + "|" +
+                (fuelRequired <= state.getFuel()) + "|" + Math.min(state.getPos() - 1, MAX_MOVE) +
+                "|" + Math.min(ps.getN() - state.getPos(), MAX_MOVE);
+    }
+
+    /**
+     * Describe the observable outcome of an A1
+     *
+     * @param state the state moved from
+     * @param next the state moved to
+     * @param stepsUsed the number of steps the move used
+     *
+     * @return the outcome
+     */
+    private static String outcome(State state, State next, int stepsUsed) {
+        return (next.getPos() - state.getPos()) + "," + stepsUsed + "," +
+                (next.getFuel() - state.getFuel());
+    }
+
+    /**
+     * Classify the steps used by an A1: 1 for a move, or for staying put (not having the fuel to
+     * move, or moving 0), or the slip recovery or repair time when the car stayed in place. Any
+     * other step count is invalid.
+     *
+     * @param ps the problem spec
+     * @param state the state moved from
+     * @param next the state moved to
+     * @param stepsUsed the number of steps the move used
+     *
+     * @return the accounting class
+     */
+    private static String accounting(ProblemSpec ps, State state, State next, int stepsUsed) {
+        boolean stayed = next.getPos() == state.getPos();
+
+        if (stepsUsed == 1) {
+            return stayed ? "stayed" : "moved";
+        } else if (stayed && stepsUsed == ps.getSlipRecoveryTime()) {
+            return "slipped";
+        } else if (stayed && stepsUsed == ps.getRepairTime()) {
+            return "brokeDown";
+        }
+
+        return INVALID_ACCOUNTING;
+    }
+
+    /**
+     * Chi-square test of whether the support code and candidate outcome counts come from the same
+     * distribution
+     *
+     * @param counts the outcome counts, [0] from the support code and [1] from the candidate
+     *
+     * @return the p-value
+     */
+    static double homogeneityPValue(Map<String, int[]> counts) {
+        long[] totals = new long[2];
+
+        for (int[] count : counts.values()) {
+            totals[0] += count[0];
+            totals[1] += count[1];
+        }
+
+        long total = totals[0] + totals[1];
+        double smallerShare = Math.min(totals[0], totals[1]) / (double) total;
+
+        // Merge the rare outcomes into one category
+        List<long[]> categories = new ArrayList<>();
+        long[] rare = new long[2];
+
+        for (int[] count : counts.values()) {
+            if ((count[0] + count[1]) * smallerShare < MIN_EXPECTED) {
+                rare[0] += count[0];
+                rare[1] += count[1];
+            } else {
+                categories.add(new long[]{count[0], count[1]});
+            }
+        }
+
+        if (rare[0] + rare[1] > 0) {
+            categories.add(rare);
+        }
+
+        if (categories.size() < 2) {
+            return 1;
+        }
+
+        double statistic = 0;
+
+        for (long[] category : categories) {
+            long categoryTotal = category[0] + category[1];
+
+            for (int i = 0; i < 2; i++) {
+                double expected = categoryTotal * totals[i] / (double) total;
+                double difference = category[i] - expected;
+                statistic += difference * difference / expected;
+            }
+        }
+
+        return chiSquareUpperTail(statistic, categories.size() - 1);
+    }
+
+    /**
+     * Probability of a chi-square distributed value being at least a statistic
+     *
+     * @param statistic the statistic
+     * @param degreesOfFreedom the degrees of freedom
+     *
+     * @return the upper tail probability
+     */
+    static double chiSquareUpperTail(double statistic, int degreesOfFreedom) {
+        return upperIncompleteGamma(degreesOfFreedom / 2.0, statistic / 2);
+    }
+
+    /**
+     * Regularized upper incomplete gamma function Q(a, x), by its series for small x and its
+     * continued fraction otherwise
+     *
+     * @param a the shape
+     * @param x the point
+     *
+     * @return Q(a, x)
+     */
+    private static double upperIncompleteGamma(double a, double x) {
+        if (x <= 0) {
+            return 1;
+        }
+
+        double logPrefix = a * Math.log(x) - x - logGamma(a);
+
+        if (x < a + 1) {
+            double term = 1 / a;
+            double sum = term;
+
+            for (int n = 1; n < 1000 && Math.abs(term) > Math.abs(sum) * 1e-15; n++) {
+                term *= x / (a + n);
+                sum += term;
+            }
+
+            return Math.max(0, 1 - sum * Math.exp(logPrefix));
+        }
+
+        // Lentz's method
+        double tiny = 1e-300;
+        double b = x + 1 - a;
+        double c = 1 / tiny;
+        double d = 1 / b;
+        double h = d;
+
+        for (int n = 1; n < 1000; n++) {
+            double an = -n * (n - a);
+            b += 2;
+            d = an * d + b;
+            d = Math.abs(d) < tiny ? tiny : d;
+            c = b + an / c;
+            c = Math.abs(c) < tiny ? tiny : c;
+            d = 1 / d;
+            double delta = d * c;
+            h *= delta;
+
+            if (Math.abs(delta - 1) < 1e-15) {
+                break;
+            }
+        }
+
+        return Math.exp(logPrefix) * h;
+    }
+
+    /**
+     * Natural log of the gamma function, by the Lanczos approximation
+     *
+     * @param x the point, positive
+     *
+     * @return ln(gamma(x))
+     */
+    private static double logGamma(double x) {
+        double[] coefficients = {76.18009172947146, -86.50532032941677, 24.01409824083091,
+                -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+        double y = x;
+        double tmp = x + 5.5;
+        tmp -= (x + 0.5) * Math.log(tmp);
+        double series = 1.000000000190015;
+
+        for (double coefficient : coefficients) {
+            series += coefficient / ++y;
+        }
+
+        return -tmp + Math.log(2.5066282746310005 * series / x);
+    }
+}
@@ -0,0 +1,137 @@
+package solution;
+
+import problem.ProblemSpec;
+import problem.Terrain;
+import simulator.State;
+
+/**
+ * Maps states to abstract states, so tree nodes for near identical states are merged and pool
+ * their visits and rewards. Fuel is bucketed, elapsed steps are bucketed (or ignored), and fuel
+ * can be ignored altogether once there is enough of it to reach the goal at the current fuel
+ * consumption. Coarser buckets mean fewer, better visited nodes, at the cost of treating states
+ * with different futures as one.
+ *
+ * An abstract state is a long key. The node for an abstract state keeps the first concrete state
+ * which reached it, while descents carry on from the concrete state they sampled.
+ */
+public class StateAbstraction {
+    /**
+     * Fuel bucket used when the fuel is ignored
+     */
+    private static final int SPARE_FUEL_BUCKET = 63;
+
+    /**
+     * The problem specification
+     */
+    private ProblemSpec problemSpec;
+
+    /**
+     * Units of fuel per bucket, 1 to keep exact fuel
+     */
+    private int fuelBucket;
+
+    /**
+     * Steps per bucket, 0 to ignore the elapsed steps
+     */
+    private int stepsBucket;
+
+    /**
+     * Whether to ignore the fuel when there is enough to reach the goal
+     */
+    private boolean ignoreSpareFuel;
+
+    /**
+     * Number of cells of each terrain type from each position to the end of the track, indexed
+     * by [pos - 1][terrain index]
+     */
+    private int[][] remainingCells;
+
+    /**
+     * Simulator used only to calculate fuel usage
+     */
+    private FromStateSimulator simulator;
+
+    /**
+     * Constructor
+     *
+     * @param problemSpec the problem specification
+     * @param fuelBucket units of fuel per bucket, 1 to keep exact fuel
+     * @param stepsBucket steps per bucket, 0 to ignore the elapsed steps
+     * @param ignoreSpareFuel whether to ignore the fuel when there is enough to reach the goal
+     */
+    public StateAbstraction(ProblemSpec problemSpec, int fuelBucket, int stepsBucket,
+                            boolean ignoreSpareFuel) {
+        if (fuelBucket < 1 || stepsBucket < 0) {
+            throw new IllegalArgumentException("fuelBucket must be positive and stepsBucket " +
+                    "not negative");
+        }
+
+        this.problemSpec = problemSpec;
+        this.fuelBucket = fuelBucket;
+        this.stepsBucket = stepsBucket;
+        this.ignoreSpareFuel = ignoreSpareFuel;
+
+        simulator = new FromStateSimulator(problemSpec);
+
+        Terrain[] map = problemSpec.getEnvironmentMap();
+        int terrains = problemSpec.getNT();
+        remainingCells = new int[map.length + 1][terrains];
+
+        for (int pos = map.length; pos >= 1; pos--) {
+            System.arraycopy(remainingCells[pos], 0, remainingCells[pos - 1], 0, terrains);
+            remainingCells[pos - 1][problemSpec.getTerrainIndex(map[pos - 1])]++;
+        }
+    }
+
+    /**
+     * Get the abstract state of a state
+     *
+     * @param state the state
+     * @param steps the steps done on reaching the state
+     *
+     * @return the key identifying the abstract state
+     */
+    public long key(State state, int steps) {
+        int fuel = state.getFuel() / fuelBucket;
+
+        if (ignoreSpareFuel && state.getFuel() >= fuelToGoal(state)) {
+            fuel = SPARE_FUEL_BUCKET;
+        }
+
+        long key = state.getPos();
+        key = key * 64 + problemSpec.getCarIndex(state.getCarType());
+        key = key * 64 + problemSpec.getDriverOrder().indexOf(state.getDriver());
+        key = key * 8 + state.getTireModel().ordinal();
+        key = key * 4 + state.getTirePressure().ordinal();
+        key = key * 64 + Math.min(fuel, SPARE_FUEL_BUCKET);
+        key = key * 65536 + (stepsBucket == 0 ? 0 : Math.min(steps / stepsBucket, 65535));
+
+        return key;
+    }
+
+    /**
+     * The fuel needed to cover the rest of the track with the state's car and tire pressure,
+     * assuming no backwards moves
+     *
+     * @param state the state
+     *
+     * @return the fuel needed
+     */
+    private int fuelToGoal(State state) {
+        if (state.getPos() > remainingCells.length - 1) {
+            return 0;
+        }
+
+        int[] cells = remainingCells[state.getPos() - 1];
+        int fuel = 0;
+
+        for (int terrainIndex = 0; terrainIndex < cells.length; terrainIndex++) {
+            if (cells[terrainIndex] > 0) {
+                fuel += cells[terrainIndex] * simulator.getFuelConsumption(terrainIndex,
+                        state.getCarType(), state.getTirePressure());
+            }
+        }
+
+        return fuel;
+    }
+}
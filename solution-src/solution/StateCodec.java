@@ -0,0 +1,56 @@
+package solution;
+
+import problem.Tire;
+import problem.TirePressure;
+import simulator.State;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Reads and writes states in a compact binary form, for sending them between processes and
+ * storing them in files
+ */
+public class StateCodec {
+    /**
+     * Write a state
+     *
+     * @param out the output to write to
+     * @param state the state
+     *
+     * @throws IOException if there is an error writing
+     */
+    public static void write(DataOutput out, State state) throws IOException {
+        out.writeShort(state.getPos());
+        out.writeBoolean(state.isInSlipCondition());
+        out.writeBoolean(state.isInBreakdownCondition());
+        out.writeUTF(state.getCarType());
+        out.writeShort(state.getFuel());
+        out.writeByte(state.getTirePressure().ordinal());
+        out.writeUTF(state.getDriver());
+        out.writeByte(state.getTireModel().ordinal());
+    }
+
+    /**
+     * Read a state written by write()
+     *
+     * @param in the input to read from
+     *
+     * @return the state
+     *
+     * @throws IOException if there is an error reading
+     */
+    public static State read(DataInput in) throws IOException {
+        int pos = in.readShort();
+        boolean slip = in.readBoolean();
+        boolean breakdown = in.readBoolean();
+        String car = in.readUTF();
+        int fuel = in.readShort();
+        TirePressure pressure = TirePressure.values()[in.readByte()];
+        String driver = in.readUTF();
+        Tire tire = Tire.values()[in.readByte()];
+
+        return new State(pos, slip, breakdown, car, fuel, pressure, driver, tire);
+    }
+}
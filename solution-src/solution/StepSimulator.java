@@ -0,0 +1,56 @@
+package solution;
+
+import problem.Action;
+import simulator.State;
+
+/**
+ * A simulator stepped one action at a time from any state. The simulator engines of the search
+ * implement it, so SimulatorFidelityTester can check any of them against the support code
+ * simulator.
+ */
+public interface StepSimulator {
+    /**
+     * Set the state to step from
+     *
+     * @param startState the state
+     * @param stepsDone the number of steps done in the state
+     *
+     * @return a copy of the state
+     */
+    State setStartState(State startState, int stepsDone);
+
+    /**
+     * Perform an action from the current state
+     *
+     * @param action the action
+     *
+     * @return FromStateSimulator.IN_PROGRESS, WIN or LOSS
+     */
+    int step(Action action);
+
+    /**
+     * Get the current state
+     *
+     * @return the current state
+     */
+    State getCurrentState();
+
+    /**
+     * Get the number of steps done in the current state
+     *
+     * @return the steps done
+     */
+    int getSteps();
+
+    /**
+     * Check whether the simulator can perform an action. Engines which only run rollouts may
+     * support CONTINUE_MOVING alone.
+     *
+     * @param action the action
+     *
+     * @return whether step() accepts the action
+     */
+    default boolean supports(Action action) {
+        return true;
+    }
+}
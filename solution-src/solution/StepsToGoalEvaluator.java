@@ -0,0 +1,171 @@
+package solution;
+
+import problem.ProblemSpec;
+import problem.Terrain;
+import problem.Tire;
+import problem.TirePressure;
+import simulator.State;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Leaf evaluator which estimates the expected number of steps required to reach the goal by
+ * continuing to move with the current car, driver, tires and pressure. The move distributions for
+ * each terrain are calculated once per configuration and reused. Safe to use from several
+ * threads at once.
+ */
+public class StepsToGoalEvaluator implements LeafEvaluator {
+    /**
+     * Fuel added per time step when refueling
+     */
+    private static final int FUEL_PER_STEP = 10;
+
+    /**
+     * The problem specification
+     */
+    private ProblemSpec problemSpec;
+
+    /**
+     * The reward shape of the search
+     */
+    private SearchConstants constants;
+
+    /**
+     * Simulator used only to calculate move distributions and fuel usage
+     */
+    private FromStateSimulator simulator;
+
+    /**
+     * Expected steps per cell travelled for each configuration, indexed by terrain index
+     */
+    private Map<String, double[]> stepsPerCell;
+
+    /**
+     * Expected fuel used per cell travelled for each configuration, indexed by terrain index
+     */
+    private Map<String, double[]> fuelPerCell;
+
+    /**
+     * Create an evaluator for a problem
+     *
+     * @param problemSpec the problem specification
+     * @param constants the reward shape of the search
+     */
+    public StepsToGoalEvaluator(ProblemSpec problemSpec, SearchConstants constants) {
+        this.problemSpec = problemSpec;
+        this.constants = constants;
+
+        simulator = new FromStateSimulator(problemSpec);
+        stepsPerCell = new ConcurrentHashMap<>();
+        fuelPerCell = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public double evaluate(State state, int steps) {
+        String key = configurationKey(state);
+
+        if (!stepsPerCell.containsKey(key)) {
+            precompute(key, state);
+        }
+
+        double[] cellSteps = stepsPerCell.get(key);
+        double[] cellFuel = fuelPerCell.get(key);
+        Terrain[] environmentMap = problemSpec.getEnvironmentMap();
+
+        int maxT = problemSpec.getMaxT();
+        double remainingTime = maxT - steps;
+        double expectedSteps = 0;
+        double expectedFuel = 0;
+        int pos = state.getPos();
+
+        // Walk the remaining cells, accumulating the expected cost of crossing each one
+        while (pos < problemSpec.getN()) {
+            int terrainIndex = problemSpec.getTerrainIndex(environmentMap[pos - 1]);
+            double cellCost = cellSteps[terrainIndex];
+
+            // Refueling has to happen at some point if the tank can't cover the distance
+            if (problemSpec.getLevel().getLevelNumber() > 1 &&
+                    expectedFuel + cellFuel[terrainIndex] > state.getFuel()) {
+                cellCost += cellFuel[terrainIndex] / FUEL_PER_STEP;
+            }
+
+            if (Double.isInfinite(cellCost) || expectedSteps + cellCost > remainingTime) {
+                // The goal won't be reached in time, score the expected distance travelled
+                return constants.lossReward(pos, problemSpec.getN());
+            }
+
+            expectedSteps += cellCost;
+            expectedFuel += cellFuel[terrainIndex];
+            pos++;
+        }
+
+        return constants.winReward(steps + expectedSteps, maxT);
+    }
+
+    /**
+     * Calculate the expected steps and fuel per cell for each terrain type for the configuration
+     * of a state
+     *
+     * @param key the configuration key of the state
+     * @param state the state
+     */
+    private void precompute(String key, State state) {
+        int terrainTypes = problemSpec.getNT();
+        double[] cellSteps = new double[terrainTypes];
+        double[] cellFuel = new double[terrainTypes];
+
+        String car = state.getCarType();
+        String driver = state.getDriver();
+        Tire tire = state.getTireModel();
+        TirePressure pressure = state.getTirePressure();
+
+        for (int terrainIndex = 0; terrainIndex < terrainTypes; terrainIndex++) {
+            double[] moveProbs = simulator.getMoveProbs(terrainIndex, car, driver, tire,
+                    pressure);
+
+            double expectedDistance = 0;
+            double expectedTime = 0;
+
+            for (int k = 0; k < ProblemSpec.CAR_MOVE_RANGE; k++) {
+                int move = problemSpec.convertIndexIntoMove(k);
+
+                if (move == ProblemSpec.SLIP) {
+                    expectedTime += moveProbs[k] * problemSpec.getSlipRecoveryTime();
+                } else if (move == ProblemSpec.BREAKDOWN) {
+                    expectedTime += moveProbs[k] * problemSpec.getRepairTime();
+                } else {
+                    expectedTime += moveProbs[k];
+                    expectedDistance += moveProbs[k] * move;
+                }
+            }
+
+            int fuelPerMove = simulator.getFuelConsumption(terrainIndex, car, pressure);
+
+            if (expectedDistance <= 0) {
+                // This configuration never makes progress on this terrain
+                cellSteps[terrainIndex] = Double.POSITIVE_INFINITY;
+                cellFuel[terrainIndex] = Double.POSITIVE_INFINITY;
+            } else {
+                cellSteps[terrainIndex] = expectedTime / expectedDistance;
+                cellFuel[terrainIndex] = fuelPerMove / expectedDistance;
+            }
+        }
+
+        // evaluate() checks stepsPerCell, so fill it last
+        fuelPerCell.put(key, cellFuel);
+        stepsPerCell.put(key, cellSteps);
+    }
+
+    /**
+     * Get a key identifying the parts of a state which affect the move distribution
+     *
+     * @param state the state
+     *
+     * @return the configuration key
+     */
+    private String configurationKey(State state) {
+        return state.getCarType() + "," + state.getDriver() + "," + state.getTireModel() + "," +
+                state.getTirePressure();
+    }
+}
@@ -0,0 +1,422 @@
+package solution;
+
+import problem.Action;
+import simulator.State;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams snapshots of the trees MCTS builds to a JSON lines file for offline analysis. At the end
+ * of each decision the part of the finished tree which will be written is copied and handed to a
+ * background writer thread, so the search never waits on the file and the rest of the tree can be
+ * collected as soon as the next search starts.
+ *
+ * Each line is one node: the decision step it belongs to, its id and its parent's id within that
+ * snapshot, its depth, the action leading to it, its visits, its mean reward and a summary of its
+ * state. Only the topK most visited children of each node are written, down to maxDepth, and
+ * children with fewer than minVisits visits are skipped, which keeps the file bounded however
+ * long the search runs.
+ */
+public class TreeExporter implements AutoCloseable {
+    /**
+     * Number of finished trees which can wait for the writer. Trees submitted while it is full
+     * are dropped rather than holding up the next decision.
+     */
+    private static final int QUEUE_CAPACITY = 4;
+
+    /**
+     * Queued in place of a tree to stop the writer
+     */
+    private static final Snapshot END = new Snapshot(-1, null);
+
+    /**
+     * How long close() waits at a time for room to queue END, in millis, before checking the
+     * writer is still running
+     */
+    private static final long CLOSE_POLL_MILLIS = 100;
+
+    /**
+     * Finished trees waiting to be written
+     */
+    private BlockingQueue<Snapshot> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /**
+     * The output file
+     */
+    private BufferedWriter writer;
+
+    /**
+     * The background thread writing the snapshots
+     */
+    private Thread writerThread;
+
+    /**
+     * Number of most visited children written under each node
+     */
+    private int topK;
+
+    /**
+     * Deepest level of the tree written, the root being level 0
+     */
+    private int maxDepth;
+
+    /**
+     * Fewest visits a node needs to be written
+     */
+    private int minVisits;
+
+    /**
+     * Number of snapshots dropped because the writer was behind
+     */
+    private AtomicInteger dropped = new AtomicInteger();
+
+    /**
+     * The written part of a finished tree and the step its decision was made at
+     */
+    private static class Snapshot {
+        /**
+         * Steps done when the decision was made
+         */
+        final int stepsDone;
+
+        /**
+         * The nodes to write, in the order they are written
+         */
+        final List<ExportedNode> nodes;
+
+        /**
+         * Constructor
+         *
+         * @param stepsDone steps done when the decision was made
+         * @param nodes the nodes to write, in the order they are written
+         */
+        Snapshot(int stepsDone, List<ExportedNode> nodes) {
+            this.stepsDone = stepsDone;
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * Copy of what is written about a node, which doesn't keep the rest of its tree reachable
+     */
+    private static class ExportedNode {
+        /**
+         * The node's id within the snapshot
+         */
+        final int id;
+
+        /**
+         * The parent's id, or -1 for the root
+         */
+        final int parentId;
+
+        /**
+         * The node's depth
+         */
+        final int depth;
+
+        /**
+         * The action leading to the node, or null for the root
+         */
+        final Action action;
+
+        /**
+         * Number of visits of the node
+         */
+        final int visits;
+
+        /**
+         * Total reward of the node
+         */
+        final double reward;
+
+        /**
+         * The node's state, or null for lazy nodes
+         */
+        final State state;
+
+        /**
+         * Outcome of the node's action, for lazy nodes
+         */
+        final int outcome;
+
+        /**
+         * Copy a node
+         *
+         * @param id the node's id within the snapshot
+         * @param parentId the parent's id, or -1 for the root
+         * @param depth the node's depth
+         * @param node the node
+         */
+        ExportedNode(int id, int parentId, int depth, Node node) {
+            this.id = id;
+            this.parentId = parentId;
+            this.depth = depth;
+            action = node.getParentAction();
+            visits = node.getVisits();
+            reward = node.getReward();
+            state = node.getState();
+            outcome = node.getOutcome();
+        }
+    }
+
+    /**
+     * Create (or truncate) the output file and start the writer thread
+     *
+     * @param path the output file
+     * @param topK number of most visited children written under each node
+     * @param maxDepth deepest level of the tree written, the root being level 0
+     * @param minVisits fewest visits a node needs to be written
+     *
+     * @throws IOException if the file can't be created
+     */
+    public TreeExporter(String path, int topK, int maxDepth, int minVisits) throws IOException {
+        if (topK < 1 || maxDepth < 0) {
+            throw new IllegalArgumentException("topK must be positive and maxDepth not negative");
+        }
+
+        this.topK = topK;
+        this.maxDepth = maxDepth;
+        this.minVisits = minVisits;
+
+        writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8);
+
+        writerThread = new Thread(this::writeSnapshots, "tree-exporter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Copy the part of a finished tree which will be written and queue it. Returns without
+     * waiting for the writer, dropping the tree if the writer is too far behind.
+     *
+     * @param stepsDone steps done when the decision was made
+     * @param root root of the finished tree, which must no longer be searched
+     */
+    public void submit(int stepsDone, Node root) {
+        // Don't copy a tree there is no room for
+        boolean queued = queue.remainingCapacity() > 0 &&
+                queue.offer(new Snapshot(stepsDone, extract(root)));
+
+        if (!queued) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the number of trees dropped because the writer was behind
+     *
+     * @return the number of dropped trees
+     */
+    public int getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Write the trees still queued, then stop the writer and close the file
+     */
+    @Override
+    public void close() {
+        try {
+            // A writer which stopped on an error no longer takes from the queue, so don't wait on
+            // it for room
+            while (writerThread.isAlive() &&
+                    !queue.offer(END, CLOSE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                // Keep waiting while the writer works through the queue
+            }
+
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (dropped.get() > 0) {
+            System.out.println("Tree exporter dropped " + dropped.get() + " snapshots");
+        }
+    }
+
+    /**
+     * Body of the writer thread: write queued trees until told to stop
+     */
+    private void writeSnapshots() {
+        try {
+            while (true) {
+                Snapshot snapshot = queue.take();
+
+                if (snapshot == END) {
+                    break;
+                }
+
+                writeTree(snapshot);
+                writer.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Tree export failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.out.println("Tree export failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write one tree, one line per node
+     *
+     * @param snapshot the tree to write
+     *
+     * @throws IOException if the file can't be written
+     */
+    private void writeTree(Snapshot snapshot) throws IOException {
+        StringBuilder line = new StringBuilder();
+
+        for (ExportedNode node : snapshot.nodes) {
+            line.setLength(0);
+            appendNode(line, snapshot.stepsDone, node);
+            writer.write(line.toString());
+            writer.newLine();
+        }
+    }
+
+    /**
+     * Copy the nodes of a tree which are written, depth first
+     *
+     * @param root root of the tree
+     *
+     * @return the copied nodes, in the order they are written
+     */
+    private List<ExportedNode> extract(Node root) {
+        List<ExportedNode> nodes = new ArrayList<>();
+        ArrayList<Node> stack = new ArrayList<>();
+        ArrayList<Integer> parentIds = new ArrayList<>();
+        ArrayList<Integer> depths = new ArrayList<>();
+
+        stack.add(root);
+        parentIds.add(-1);
+        depths.add(0);
+
+        while (!stack.isEmpty()) {
+            int last = stack.size() - 1;
+            Node node = stack.remove(last);
+            int parentId = parentIds.remove(last);
+            int depth = depths.remove(last);
+            int id = nodes.size();
+
+            nodes.add(new ExportedNode(id, parentId, depth, node));
+
+            if (depth < maxDepth) {
+                for (Node child : mostVisitedChildren(node)) {
+                    stack.add(child);
+                    parentIds.add(id);
+                    depths.add(depth + 1);
+                }
+            }
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Find the children of a node which should be written: the topK most visited of those with
+     * at least minVisits visits
+     *
+     * @param node the node
+     *
+     * @return the children to write, least visited first so the most visited is written first
+     */
+    private ArrayList<Node> mostVisitedChildren(Node node) {
+        ArrayList<Node> children = new ArrayList<>();
+
+        for (Node child : node.getChildNodes()) {
+            if (child.getVisits() >= minVisits) {
+                children.add(child);
+            }
+        }
+
+        children.sort((a, b) -> Integer.compare(a.getVisits(), b.getVisits()));
+
+        if (children.size() > topK) {
+            return new ArrayList<>(children.subList(children.size() - topK, children.size()));
+        }
+
+        return children;
+    }
+
+    /**
+     * Append the JSON object describing a node
+     *
+     * @param line the line being built
+     * @param stepsDone steps done when the decision was made
+     * @param node the copied node
+     */
+    private static void appendNode(StringBuilder line, int stepsDone, ExportedNode node) {
+        line.append("{\"step\":").append(stepsDone)
+                .append(",\"id\":").append(node.id)
+                .append(",\"parent\":").append(node.parentId)
+                .append(",\"depth\":").append(node.depth);
+
+        Action action = node.action;
+
+        if (action != null) {
+            line.append(",\"action\":");
+            appendString(line, action.getText());
+        }
+
+        line.append(",\"visits\":").append(node.visits);
+
+        if (node.visits > 0) {
+            line.append(",\"mean\":").append(node.reward / node.visits);
+        }
+
+        State state = node.state;
+
+        if (state != null) {
+            line.append(",\"pos\":").append(state.getPos())
+                    .append(",\"fuel\":").append(state.getFuel())
+                    .append(",\"slip\":").append(state.isInSlipCondition())
+                    .append(",\"breakdown\":").append(state.isInBreakdownCondition());
+        } else {
+            // Lazy nodes only keep the outcome of their action
+            line.append(",\"outcome\":").append(node.outcome);
+        }
+
+        line.append('}');
+    }
+
+    /**
+     * Append a JSON string, escaping quotes, backslashes and control characters
+     *
+     * @param line the line being built
+     * @param text the string
+     */
+    private static void appendString(StringBuilder line, String text) {
+        line.append('"');
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < ' ') {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+
+        line.append('"');
+    }
+}
@@ -0,0 +1,239 @@
+package solution;
+
+import simulator.State;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded cache of playout rewards, keyed by a coarse summary of the state: position, car,
+ * driver, tires, pressure, a fuel bucket and a steps bucket. Completed playouts add their reward
+ * to every state they passed through, and later playouts can stop as soon as they reach a state
+ * with enough samples. Entries are evicted with the CLOCK algorithm once the cache is full.
+ *
+ * The cache is safe to share between threads and between the searches of an episode.
+ */
+public class ValueCache {
+    /**
+     * Default width of a fuel bucket
+     */
+    static final int DEFAULT_FUEL_BUCKET = 5;
+
+    /**
+     * Default width of a steps bucket
+     */
+    static final int DEFAULT_STEPS_BUCKET = 5;
+
+    /**
+     * Default number of samples an entry needs before it is used to stop a playout
+     */
+    static final int DEFAULT_MIN_SAMPLES = 20;
+
+    /**
+     * Cached statistics for a single state summary
+     */
+    private static class Entry {
+        /**
+         * Number of playout rewards added
+         */
+        private int samples;
+
+        /**
+         * Sum of the playout rewards added
+         */
+        private double rewardSum;
+
+        /**
+         * CLOCK reference bit, set whenever the entry is used
+         */
+        private volatile boolean referenced = true;
+
+        /**
+         * Add a playout reward
+         *
+         * @param reward the reward
+         */
+        private synchronized void add(double reward) {
+            samples++;
+            rewardSum += reward;
+        }
+    }
+
+    /**
+     * The cached entries
+     */
+    private ConcurrentHashMap<Long, Entry> entries;
+
+    /**
+     * Keys in CLOCK order. Slots not yet filled hold 0.
+     */
+    private long[] ring;
+
+    /**
+     * Position of the CLOCK hand in the ring
+     */
+    private int hand;
+
+    /**
+     * Number of ring slots filled
+     */
+    private int filled;
+
+    /**
+     * Width of a fuel bucket
+     */
+    private int fuelBucket;
+
+    /**
+     * Width of a steps bucket
+     */
+    private int stepsBucket;
+
+    /**
+     * Number of samples an entry needs before it is used to stop a playout
+     */
+    private int minSamples;
+
+    /**
+     * Create a value cache
+     *
+     * @param capacity maximum number of entries
+     * @param fuelBucket width of a fuel bucket
+     * @param stepsBucket width of a steps bucket
+     * @param minSamples number of samples an entry needs before it is used
+     */
+    public ValueCache(int capacity, int fuelBucket, int stepsBucket, int minSamples) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        this.fuelBucket = fuelBucket;
+        this.stepsBucket = stepsBucket;
+        this.minSamples = minSamples;
+
+        entries = new ConcurrentHashMap<>(capacity);
+        ring = new long[capacity];
+    }
+
+    /**
+     * Create a value cache with the default buckets and sample threshold
+     *
+     * @param capacity maximum number of entries
+     */
+    public ValueCache(int capacity) {
+        this(capacity, DEFAULT_FUEL_BUCKET, DEFAULT_STEPS_BUCKET, DEFAULT_MIN_SAMPLES);
+    }
+
+    /**
+     * Get the key of a state
+     *
+     * @param state the state
+     * @param steps the number of steps used
+     *
+     * @return the key
+     */
+    public long key(State state, int steps) {
+        long hash = state.getPos();
+        hash = hash * 31 + state.getCarType().hashCode();
+        hash = hash * 31 + state.getDriver().hashCode();
+        hash = hash * 31 + state.getTireModel().ordinal();
+        hash = hash * 31 + state.getTirePressure().ordinal();
+        hash = hash * 31 + state.getFuel() / fuelBucket;
+        hash = hash * 31 + steps / stepsBucket;
+
+        // 0 marks an empty ring slot
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Get the cached value of a key if it has enough samples
+     *
+     * @param key the key
+     *
+     * @return the mean reward, or NaN if the key doesn't have enough samples
+     */
+    public double lookup(long key) {
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            return Double.NaN;
+        }
+
+        entry.referenced = true;
+
+        synchronized (entry) {
+            return entry.samples < minSamples ? Double.NaN : entry.rewardSum / entry.samples;
+        }
+    }
+
+    /**
+     * Add the reward of a completed playout to the keys of the states it passed through
+     *
+     * @param keys the keys
+     * @param count number of keys to use from the array
+     * @param reward the playout reward
+     */
+    public void add(long[] keys, int count, double reward) {
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries.get(keys[i]);
+
+            if (entry == null) {
+                entry = insert(keys[i]);
+            }
+
+            entry.add(reward);
+        }
+    }
+
+    /**
+     * Get the number of entries in the cache
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Insert a new key, evicting an entry first if the cache is full
+     *
+     * @param key the key
+     *
+     * @return the entry for the key
+     */
+    private synchronized Entry insert(long key) {
+        Entry entry = entries.get(key);
+
+        if (entry != null) {
+            // Inserted by another thread
+            return entry;
+        }
+
+        int slot;
+
+        if (filled < ring.length) {
+            slot = filled++;
+        } else {
+            // Advance the hand, giving referenced entries a second chance
+            while (true) {
+                Entry candidate = entries.get(ring[hand]);
+
+                if (candidate == null || !candidate.referenced) {
+                    break;
+                }
+
+                candidate.referenced = false;
+                hand = (hand + 1) % ring.length;
+            }
+
+            entries.remove(ring[hand]);
+            slot = hand;
+            hand = (hand + 1) % ring.length;
+        }
+
+        entry = new Entry();
+        ring[slot] = key;
+        entries.put(key, entry);
+
+        return entry;
+    }
+}
@@ -0,0 +1,71 @@
+package solution;
+
+import simulator.State;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Untimed warm up of the search code before the first real decision. Runs short searches from a
+ * state until the JIT has settled, so the first decisions get as many iterations as later ones.
+ */
+public class WarmUp {
+    /**
+     * Length of each warm up search, in millis
+     */
+    private static final int SLICE_TIME = 250;
+
+    /**
+     * The warm up stops once the iteration rate changes by less than this fraction between
+     * slices, if compilation time can't be monitored
+     */
+    private static final double RATE_TOLERANCE = 0.05;
+
+    /**
+     * Run warm up searches from a state until compilation settles or the time limit is reached.
+     * Compilation is considered settled once a slice passes without any JIT compilation time, or
+     * without the iteration rate changing much if the JVM doesn't report compilation time.
+     *
+     * @param mcts the search to warm up. Its tree is replaced by the warm up searches.
+     * @param state the state to search from
+     * @param stepsDone the number of steps done in the state
+     * @param maxTime the longest the warm up may take, in millis
+     */
+    public static void run(MCTS mcts, State state, int stepsDone, int maxTime) {
+        CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        boolean monitorCompilation = compiler != null &&
+                compiler.isCompilationTimeMonitoringSupported();
+
+        long start = System.currentTimeMillis();
+        double firstRate = -1;
+        double lastRate = -1;
+        int slices = 0;
+
+        while (System.currentTimeMillis() < start + maxTime) {
+            long compileTime = monitorCompilation ? compiler.getTotalCompilationTime() : 0;
+            long sliceStart = System.nanoTime();
+
+            mcts.reset(state, stepsDone, SLICE_TIME);
+            mcts.getBestAction();
+
+            double rate = mcts.getIterations() / ((System.nanoTime() - sliceStart) / 1e9);
+            slices++;
+
+            if (firstRate < 0) {
+                firstRate = rate;
+            }
+
+            boolean settled = monitorCompilation ?
+                    compiler.getTotalCompilationTime() == compileTime :
+                    lastRate > 0 && Math.abs(rate - lastRate) < RATE_TOLERANCE * lastRate;
+            lastRate = rate;
+
+            if (settled) {
+                break;
+            }
+        }
+
+        System.out.printf("Warm up: %d slices in %d ms, %.0f -> %.0f iterations/s%n", slices,
+                System.currentTimeMillis() - start, firstRate, lastRate);
+    }
+}
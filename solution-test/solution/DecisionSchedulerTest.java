@@ -0,0 +1,142 @@
+package solution;
+
+import problem.Action;
+import simulator.Simulator;
+import simulator.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of answering decisions from many sessions on a small shared pool
+ */
+public class DecisionSchedulerTest {
+    /**
+     * Problem the sessions decide on
+     */
+    private static final String PROBLEM_FILE = "examples/level_4/input_official_1.txt";
+
+    /**
+     * Pool threads, fewer than the sessions
+     */
+    private static final int POOL_THREADS = 2;
+
+    /**
+     * Sessions deciding at once
+     */
+    private static final int SESSIONS = 6;
+
+    /**
+     * Decisions each session makes one after the other
+     */
+    private static final int DECISIONS = 5;
+
+    /**
+     * Budget of each decision, in millis
+     */
+    private static final int BUDGET = 50;
+
+    /**
+     * Allowance for timer and thread wake up jitter on a loaded test machine, in nanos
+     */
+    private static final long JITTER_NANOS = 5000000;
+
+    /**
+     * Sessions keep submitting new decisions while others are waiting, so the newest ones always
+     * have the smallest share. Every decision must still be answered within a slice of its
+     * deadline.
+     *
+     * @throws Exception if the problem can't be loaded or a race fails
+     */
+    @Test
+    public void everySessionAnswersWithinItsBudgetAndASlice() throws Exception {
+        try (DecisionScheduler scheduler = new DecisionScheduler(POOL_THREADS)) {
+            List<Thread> races = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            AtomicLong worstLateness = new AtomicLong(Long.MIN_VALUE);
+
+            for (int i = 0; i < SESSIONS; i++) {
+                DecisionScheduler.Session session = scheduler.openSession(PROBLEM_FILE);
+                State state = startState(session);
+
+                Thread race = new Thread(() -> {
+                    try {
+                        for (int d = 0; d < DECISIONS; d++) {
+                            long start = System.nanoTime();
+                            Action action = session.decide(state, 0, BUDGET);
+                            long lateness = System.nanoTime() - start - BUDGET * 1000000L;
+
+                            assertNotNull(action);
+                            worstLateness.accumulateAndGet(lateness, Math::max);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                });
+
+                race.start();
+                races.add(race);
+            }
+
+            for (Thread race : races) {
+                race.join();
+            }
+
+            assertTrue("Races failed: " + failures, failures.isEmpty());
+            assertTrue("A decision was " + worstLateness.get() / 1000 + "us late",
+                    worstLateness.get() <= DecisionScheduler.SLICE_NANOS + JITTER_NANOS);
+        }
+    }
+
+    /**
+     * Closing the scheduler fails the decisions still waiting, rather than leaving their callers
+     * blocked
+     *
+     * @throws IOException if the problem can't be loaded
+     */
+    @Test
+    public void closeCompletesPendingDecisions() throws IOException {
+        DecisionScheduler scheduler = new DecisionScheduler(1);
+        DecisionScheduler.Session session = scheduler.openSession(PROBLEM_FILE);
+
+        CompletableFuture<Action> result = session.submit(startState(session), 0, 60000);
+        scheduler.close();
+
+        try {
+            result.join();
+            fail("A decision pending at close was answered");
+        } catch (CompletionException | CancellationException e) {
+            assertTrue(result.isCompletedExceptionally());
+        }
+    }
+
+    /**
+     * Get the start state of a session's problem from the support code simulator
+     *
+     * @param session the session
+     *
+     * @return the start state
+     *
+     * @throws IOException if the simulator's output file can't be created
+     */
+    private static State startState(DecisionScheduler.Session session) throws IOException {
+        File output = File.createTempFile("mcts-test", ".txt");
+        output.deleteOnExit();
+
+        return new Simulator(session.getProblemSpec(), output.getPath()).reset();
+    }
+}
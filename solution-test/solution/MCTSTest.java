@@ -0,0 +1,112 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.Simulator;
+import simulator.State;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of search settings used together
+ */
+public class MCTSTest {
+    /**
+     * Problem with several terrain types, so macro-actions stop at terrain changes
+     */
+    private static final String PROBLEM_FILE = "examples/level_4/input_official_1.txt";
+
+    /**
+     * Search time of each test search, in millis
+     */
+    private static final int TIME_LIMIT = 200;
+
+    /**
+     * Clear the properties set by a test
+     */
+    @After
+    public void clearProperties() {
+        System.clearProperty(Main.LAZY_STATES_PROPERTY);
+        System.clearProperty(Main.MACRO_LENGTHS_PROPERTY);
+    }
+
+    /**
+     * Lazy state nodes and macro-actions together: the children of a macro-action store their
+     * state while their lazy siblings don't, so matching a macro-action's outcome must skip them
+     *
+     * @throws IOException if the problem can't be loaded
+     */
+    @Test
+    public void searchWithLazyStatesAndMacroActions() throws IOException {
+        System.setProperty(Main.LAZY_STATES_PROPERTY, "true");
+        System.setProperty(Main.MACRO_LENGTHS_PROPERTY, "2,4");
+
+        ProblemSpec ps = new ProblemSpec(PROBLEM_FILE);
+        MCTS mcts = new MCTS(ps);
+        Main.configureSearch(ps, mcts);
+
+        mcts.reset(startState(ps), 0, TIME_LIMIT);
+        Action action = mcts.getBestAction();
+
+        assertNotNull(action);
+        assertTrue(mcts.getValidActions().contains(action));
+        assertTrue(mcts.getIterations() > 0);
+    }
+
+    /**
+     * The root statistics reported to a root parallel coordinator count the visits spent on
+     * macro-actions under CONTINUE_MOVING, so none of the search is lost from the merge
+     *
+     * @throws IOException if the problem can't be loaded
+     */
+    @Test
+    public void rootActionStatsIncludeMacroActions() throws IOException {
+        System.setProperty(Main.MACRO_LENGTHS_PROPERTY, "2,4");
+
+        ProblemSpec ps = new ProblemSpec(PROBLEM_FILE);
+        MCTS mcts = new MCTS(ps);
+        Main.configureSearch(ps, mcts);
+
+        mcts.reset(startState(ps), 0, TIME_LIMIT);
+        mcts.getBestAction();
+
+        double[][] stats = mcts.getRootActionStats();
+        long reportedVisits = 0;
+        long childVisits = 0;
+
+        for (double visits : stats[0]) {
+            reportedVisits += (long) visits;
+        }
+
+        for (Node child : mcts.getRoot().getChildNodes()) {
+            childVisits += child.getVisits();
+        }
+
+        assertEquals(mcts.getValidActions().size(), stats[0].length);
+        assertEquals(childVisits, reportedVisits);
+    }
+
+    /**
+     * Get the start state of a problem from the support code simulator
+     *
+     * @param ps the problem
+     *
+     * @return the start state
+     *
+     * @throws IOException if the simulator's output file can't be created
+     */
+    private static State startState(ProblemSpec ps) throws IOException {
+        File output = File.createTempFile("mcts-test", ".txt");
+        output.deleteOnExit();
+
+        return new Simulator(ps, output.getPath()).reset();
+    }
+}
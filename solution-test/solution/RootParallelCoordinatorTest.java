@@ -0,0 +1,138 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.Simulator;
+import simulator.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of root parallel search with workers on the loopback interface
+ */
+public class RootParallelCoordinatorTest {
+    /**
+     * Problem with several terrain types, so macro-actions stop at terrain changes
+     */
+    private static final String PROBLEM_FILE = "examples/level_4/input_official_1.txt";
+
+    /**
+     * Number of workers
+     */
+    private static final int WORKERS = 2;
+
+    /**
+     * Search time of each worker, in millis
+     */
+    private static final int TIME_LIMIT = 200;
+
+    /**
+     * How long to wait for a worker to start listening, in millis
+     */
+    private static final int START_TIMEOUT = 5000;
+
+    /**
+     * Clear the properties set by a test
+     */
+    @After
+    public void clearProperties() {
+        System.clearProperty(Main.MACRO_LENGTHS_PROPERTY);
+    }
+
+    /**
+     * Workers in this process, searching with macro-actions, reply over loopback sockets and the
+     * coordinator merges their statistics into one of the primitive actions
+     *
+     * @throws IOException if the problem can't be loaded or a worker can't be connected to
+     */
+    @Test
+    public void mergesDecisionOfLoopbackWorkers() throws IOException {
+        System.setProperty(Main.MACRO_LENGTHS_PROPERTY, "2,4");
+
+        ProblemSpec ps = new ProblemSpec(PROBLEM_FILE);
+        List<String> addresses = new ArrayList<>();
+
+        for (int i = 0; i < WORKERS; i++) {
+            addresses.add("localhost:" + startWorker());
+        }
+
+        RootParallelCoordinator coordinator = new RootParallelCoordinator(PROBLEM_FILE,
+                addresses);
+
+        try {
+            Action action = coordinator.getBestAction(ps, startState(ps), 0, TIME_LIMIT);
+
+            assertNotNull(action);
+            assertTrue(MCTS.indexOfAction(MCTS.makeValidActionsDiscretized(ps), action) >= 0);
+        } finally {
+            coordinator.close();
+        }
+    }
+
+    /**
+     * Start a worker on a free loopback port in a daemon thread, and wait until it listens
+     *
+     * @return the worker's port
+     *
+     * @throws IOException if no port is free or the worker doesn't start listening in time
+     */
+    private static int startWorker() throws IOException {
+        int port;
+
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+
+        Thread worker = new Thread(() -> {
+            try {
+                new SearchWorker().serve(port);
+            } catch (IOException e) {
+                System.out.println("Search worker failed: " + e.getMessage());
+            }
+        });
+
+        worker.setDaemon(true);
+        worker.start();
+
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+
+        while (true) {
+            // The worker treats a connection closed without requests as finished
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                return port;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the start state of a problem from the support code simulator
+     *
+     * @param ps the problem
+     *
+     * @return the start state
+     *
+     * @throws IOException if the simulator's output file can't be created
+     */
+    private static State startState(ProblemSpec ps) throws IOException {
+        File output = File.createTempFile("mcts-test", ".txt");
+        output.deleteOnExit();
+
+        return new Simulator(ps, output.getPath()).reset();
+    }
+}
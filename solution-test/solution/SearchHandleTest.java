@@ -0,0 +1,146 @@
+package solution;
+
+import problem.Action;
+import problem.ProblemSpec;
+import simulator.Simulator;
+import simulator.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of polling and stopping a search running in the background
+ */
+public class SearchHandleTest {
+    /**
+     * Problem to search
+     */
+    private static final String PROBLEM_FILE = "examples/level_4/input_official_1.txt";
+
+    /**
+     * Budget of each search, far longer than the tests wait, in millis
+     */
+    private static final int BUDGET = 60000;
+
+    /**
+     * Longest a test waits for the search to make progress or stop, in millis
+     */
+    private static final int WAIT_TIMEOUT = 5000;
+
+    /**
+     * Time to check the stopped search makes no more progress over, in millis
+     */
+    private static final int SETTLE_TIME = 50;
+
+    /**
+     * Poll a running search until it has an estimate, then stop it through cancel()
+     *
+     * @throws Exception if the problem can't be loaded or the search fails
+     */
+    @Test
+    public void cancelStopsSearchWithBestActionSoFar() throws Exception {
+        ProblemSpec ps = new ProblemSpec(PROBLEM_FILE);
+        MCTS mcts = newSearch(ps);
+        SearchHandle handle = SearchHandle.start(mcts, startState(ps), 0, BUDGET, 0);
+
+        awaitEstimate(handle);
+        handle.cancel();
+
+        Action action = handle.getResult().get();
+        assertNotNull(action);
+        assertStopped(handle, mcts);
+    }
+
+    /**
+     * Cancelling the future returned by getResult() stops the search too, rather than leaving it
+     * running until its deadline
+     *
+     * @throws Exception if the problem can't be loaded or the search fails
+     */
+    @Test
+    public void cancellingResultStopsSearch() throws Exception {
+        ProblemSpec ps = new ProblemSpec(PROBLEM_FILE);
+        MCTS mcts = newSearch(ps);
+        SearchHandle handle = SearchHandle.start(mcts, startState(ps), 0, BUDGET, 0);
+
+        awaitEstimate(handle);
+        CompletableFuture<Action> result = handle.getResult();
+        assertTrue(result.cancel(true));
+
+        assertStopped(handle, mcts);
+    }
+
+    /**
+     * Wait until a search has published an estimate with an action
+     *
+     * @param handle the search
+     *
+     * @throws InterruptedException if the wait is interrupted
+     */
+    private static void awaitEstimate(SearchHandle handle) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+
+        while (handle.poll().getAction() == null || handle.poll().getIterations() == 0) {
+            assertTrue("No estimate was published", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Check a search stops well before its budget and runs no more iterations
+     *
+     * @param handle the search
+     * @param mcts the search's MCTS object
+     *
+     * @throws InterruptedException if the wait is interrupted
+     */
+    private static void assertStopped(SearchHandle handle, MCTS mcts)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+
+        while (!handle.isDone()) {
+            assertTrue("The search didn't stop", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        int iterations = mcts.getIterations();
+        Thread.sleep(SETTLE_TIME);
+        assertEquals(iterations, mcts.getIterations());
+    }
+
+    /**
+     * Create a search of a problem with the configured settings
+     *
+     * @param ps the problem
+     *
+     * @return the search
+     */
+    private static MCTS newSearch(ProblemSpec ps) {
+        MCTS mcts = new MCTS(ps);
+        Main.configureSearch(ps, mcts);
+        return mcts;
+    }
+
+    /**
+     * Get the start state of a problem from the support code simulator
+     *
+     * @param ps the problem
+     *
+     * @return the start state
+     *
+     * @throws IOException if the simulator's output file can't be created
+     */
+    private static State startState(ProblemSpec ps) throws IOException {
+        File output = File.createTempFile("mcts-test", ".txt");
+        output.deleteOnExit();
+
+        return new Simulator(ps, output.getPath()).reset();
+    }
+}